@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.junit;
+
+import org.junit.jupiter.api.extension.*;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.VirtualClock;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+
+/**
+ * A JUnit 5 extension which {@link VirtualClock#install(Clock) installs} a clock for the duration of each test, and then uninstalls it.
+ * <p>
+ * Registered with {@code @ExtendWith(VirtualClockExtension.class)}, it installs a new {@link ManualClock}, starting at 0,
+ * for every test. Registered with {@code @RegisterExtension}, it installs the given clock, which, if a {@code ManualClock},
+ * is {@link ManualClock#reset() reset} after every test.
+ * Either way, test and lifecycle methods may declare a parameter of type {@link Clock} (or of the installed clock's type) to get it.
+ *
+ * @author pron
+ */
+public final class VirtualClockExtension implements BeforeEachCallback, AfterEachCallback, ParameterResolver {
+    private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(VirtualClockExtension.class);
+
+    private final Clock clock;
+
+    /**
+     * Creates an extension installing a new {@link ManualClock}, starting at 0, for every test.
+     */
+    public VirtualClockExtension() {
+        this.clock = null;
+    }
+
+    /**
+     * Creates an extension installing the given clock for every test.
+     *
+     * @param clock the clock to install
+     */
+    public VirtualClockExtension(Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException();
+        }
+        this.clock = clock;
+    }
+
+    @Override
+    public void beforeEach(ExtensionContext context) {
+        final Clock c = clock != null ? clock : new ManualClock(0);
+        context.getStore(NAMESPACE).put(VirtualClock.Scope.class, VirtualClock.install(c));
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        final VirtualClock.Scope scope = context.getStore(NAMESPACE).remove(VirtualClock.Scope.class, VirtualClock.Scope.class);
+        if (scope != null) {
+            scope.close();
+            if (scope.clock() instanceof ManualClock) {
+                ((ManualClock) scope.clock()).reset();
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        final Class<?> type = parameterContext.getParameter().getType();
+        return Clock.class.isAssignableFrom(type) && type.isAssignableFrom(clock != null ? clock.getClass() : ManualClock.class);
+    }
+
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        final VirtualClock.Scope scope = extensionContext.getStore(NAMESPACE).get(VirtualClock.Scope.class, VirtualClock.Scope.class);
+        if (scope == null) {
+            throw new ParameterResolutionException("No clock is installed outside of a test");
+        }
+        return scope.clock();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.junit;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.VirtualClock;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+
+/**
+ * A JUnit 4 rule which {@link VirtualClock#install(Clock) installs} a clock for the duration of each test
+ * (or, as a {@code @ClassRule}, of the test class), and then uninstalls it.
+ * A {@link ManualClock} is {@link ManualClock#reset() reset} afterwards, so the rule can be reused by the next test.
+ * <pre>{@code
+ * @Rule
+ * public final VirtualClockRule clock = VirtualClockRule.manual(0);
+ * }</pre>
+ *
+ * @author pron
+ */
+public class VirtualClockRule implements TestRule {
+    private final Clock clock;
+
+    /**
+     * @param startTime the initial time which will be returned by {@code System.currentTimeMillis()}
+     * @return a rule installing a {@link ManualClock}
+     */
+    public static VirtualClockRule manual(long startTime) {
+        return new VirtualClockRule(new ManualClock(startTime));
+    }
+
+    /**
+     * @param clock the clock to install
+     */
+    public VirtualClockRule(Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException();
+        }
+        this.clock = clock;
+    }
+
+    /**
+     * @return the clock installed by this rule
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the {@link ManualClock} installed by this rule
+     * @throws ClassCastException if the rule's clock isn't a {@code ManualClock}
+     */
+    public ManualClock getManualClock() {
+        return (ManualClock) clock;
+    }
+
+    @Override
+    public Statement apply(final Statement base, Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                final VirtualClock.Scope scope = VirtualClock.install(clock);
+                try {
+                    base.evaluate();
+                } finally {
+                    scope.close();
+                    if (clock instanceof ManualClock) {
+                        ((ManualClock) clock).reset();
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Profiles the calls to time methods by call site, when the agent is given the {@code profile} option.
+ * <p>
+ * Each call the agent replaces is given an ID, by which the methods of {@link co.paralleluniverse.vtime.boot.CallSiteProxy CallSiteProxy}
+ * count its calls and add up the virtual time its sleeps, waits and parks request, in arrays indexed by the ID.
+ * Calls made through method references, such as {@code Thread::sleep}, aren't profiled.
+ *
+ * @author pron
+ */
+public final class CallSites implements CallSitesMXBean {
+    public static final String OBJECT_NAME = "co.paralleluniverse.vtime:type=CallSites";
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private static final Object lock = new Object();
+    private static final List<String> sites = new ArrayList<>(); // class.method:line by ID; guarded by lock
+    private static final Map<String, Integer> ids = new HashMap<>(); // IDs by class, method, descriptor, line and index; guarded by lock
+    // chunks of the sites' counters, which are never moved: the calls of site i at 2 * i, and the nanoseconds it requested at 2 * i + 1
+    private static volatile AtomicLongArray[] counters = new AtomicLongArray[0];
+
+    /**
+     * Called by the transformer for each call it replaces. A call site keeps its ID when its class is transformed again,
+     * as when it is retransformed, or loaded by another class loader.
+     *
+     * @param className the internal name of the calling class
+     * @param methodDesc the descriptor of the calling method
+     * @param line the line of the call, or a non-positive number if the class doesn't tell
+     * @param index the number of calls replaced before this one in the calling method
+     * @return the ID of the call site
+     */
+    static int register(String className, String methodName, String methodDesc, int line, int index) {
+        final String key = className + '.' + methodName + methodDesc + ':' + line + '#' + index;
+        synchronized (lock) {
+            final Integer id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            final int site = sites.size();
+            sites.add(className.replace('/', '.') + '.' + methodName + (line > 0 ? ":" + line : ""));
+            ids.put(key, site);
+            if ((site >> CHUNK_BITS) == counters.length) {
+                final AtomicLongArray[] cs = Arrays.copyOf(counters, counters.length + 1);
+                cs[cs.length - 1] = new AtomicLongArray(2 << CHUNK_BITS);
+                counters = cs;
+            }
+            return site;
+        }
+    }
+
+    /**
+     * Counts a call at the given site.
+     */
+    public static void call(int site) {
+        counters[site >> CHUNK_BITS].incrementAndGet(2 * (site & CHUNK_MASK));
+    }
+
+    /**
+     * Counts a call at the given site to a timed sleep, wait or park.
+     *
+     * @param requestedNanos the virtual time requested; nothing is added if it isn't positive
+     */
+    public static void call(int site, long requestedNanos) {
+        final AtomicLongArray chunk = counters[site >> CHUNK_BITS];
+        final int i = 2 * (site & CHUNK_MASK);
+        chunk.incrementAndGet(i);
+        if (requestedNanos > 0) {
+            chunk.addAndGet(i + 1, requestedNanos);
+        }
+    }
+
+    /**
+     * Counts a call at the given site to a park.
+     *
+     * @param isAbsolute whether {@code timeout} is a deadline, in milliseconds since the epoch, or a duration, in nanoseconds
+     */
+    public static void park(int site, boolean isAbsolute, long timeout) {
+        call(site, isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - VirtualClock.get().System_currentTimeMillis()) : timeout);
+    }
+
+    /**
+     * Reports the call sites that have requested the most virtual time, and, among those that have requested the same,
+     * such as none, those that have made the most calls.
+     *
+     * @param n the number of call sites to report
+     * @return a table of the requested virtual time in seconds, the number of calls, and the call site, one site per line
+     */
+    public static String report(int n) {
+        final String[] names;
+        synchronized (lock) {
+            names = sites.toArray(new String[0]);
+        }
+        final AtomicLongArray[] cs = counters;
+        final long[] calls = new long[names.length];
+        final long[] nanos = new long[names.length];
+        final List<Integer> ids = new ArrayList<>();
+        for (int site = 0; site < names.length; site++) {
+            final AtomicLongArray chunk = cs[site >> CHUNK_BITS];
+            final int i = 2 * (site & CHUNK_MASK);
+            calls[site] = chunk.get(i);
+            nanos[site] = chunk.get(i + 1);
+            if (calls[site] > 0) {
+                ids.add(site);
+            }
+        }
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final int c = Long.compare(nanos[b], nanos[a]);
+                return c != 0 ? c : Long.compare(calls[b], calls[a]);
+            }
+        });
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%14s %12s  %s%n", "requested (s)", "calls", "call site"));
+        for (int site : ids.subList(0, Math.min(n, ids.size()))) {
+            sb.append(String.format("%14.3f %12d  %s%n", nanos[site] / 1e9, calls[site], names[site]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Called by the agent, when {@code profile} is configured, to register the MBean and, if a number is given,
+     * report as many call sites at exit.
+     *
+     * @param conf {@code [the number of call sites to report at exit]}
+     */
+    static void start(String conf) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new CallSites(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Logger.warning("Unable to register %s:", e, OBJECT_NAME);
+        }
+        if (!conf.isEmpty()) {
+            final int n = Integer.parseInt(conf);
+            if (n <= 0) {
+                throw new IllegalArgumentException("Number of call sites must be positive; was " + n);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Logger.info("Call sites by requested virtual time:%n%s", report(n));
+                }
+            }, "CallSites report"));
+        }
+    }
+
+    private CallSites() {
+    }
+
+    @Override
+    public int getSiteCount() {
+        synchronized (lock) {
+            return sites.size();
+        }
+    }
+
+    @Override
+    public String top(int n) {
+        return report(n);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2015-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+/**
+ * The profile of the calls to time methods by call site, registered as {@value CallSites#OBJECT_NAME}.
+ *
+ * @author pron
+ */
+public interface CallSitesMXBean {
+    /**
+     * @return the number of call sites instrumented so far
+     */
+    int getSiteCount();
+
+    /**
+     * @param n the number of call sites to report
+     * @return the call sites that have requested the most virtual time, or, failing that, made the most calls
+     * @see CallSites#report(int)
+     */
+    String top(int n);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.*;
+import co.paralleluniverse.vtime.clock.SystemClock;
+
+/**
+ * Starts the JVMs spawned with {@code ProcessBuilder.start()} with this agent, when propagation is enabled,
+ * and with an {@link co.paralleluniverse.vtime.clock.OffsetClock OffsetClock} starting at the spawning JVM's current time.
+ * <p>
+ * The child's clock then keeps to the parent's if that is the system clock shifted by an offset; otherwise, the child starts
+ * at the parent's time, but runs at the system clock's rate.
+ *
+ * @author pron
+ */
+public final class ChildJvm {
+    private static volatile String agentJar;
+    private static volatile String agentArguments; // those passed on as they are, with a trailing comma
+
+    /**
+     * Called by the agent, when {@code propagate} is configured, before any call to {@code ProcessBuilder.start()} is transformed.
+     *
+     * @param arguments the agent arguments the child is started with, besides its clock
+     * @return whether the agent's JAR has been found
+     */
+    static boolean enable(List<String> arguments) {
+        final String jar = findAgentJar();
+        if (jar == null) {
+            Logger.warning("Agent JAR not found; child JVMs will not use virtual time");
+            return false;
+        }
+        enable(jar, arguments);
+        return true;
+    }
+
+    static void enable(String jar, List<String> arguments) {
+        final StringBuilder sb = new StringBuilder();
+        for (String argument : arguments) {
+            sb.append(argument).append(',');
+        }
+        agentArguments = sb.toString();
+        agentJar = jar;
+    }
+
+    /**
+     * Starts the given process, adding the agent to its command if it runs {@code java}.
+     * The builder's command is left as it was given.
+     */
+    public static Process start(ProcessBuilder builder) throws IOException {
+        final List<String> command = builder.command();
+        if (agentJar == null || !isJava(command)) {
+            return builder.start();
+        }
+        builder.command(withAgent(command));
+        try {
+            return builder.start();
+        } finally {
+            builder.command(command);
+        }
+    }
+
+    static boolean isJava(List<String> command) {
+        if (command.isEmpty()) {
+            return false;
+        }
+        final String name = new File(command.get(0)).getName();
+        if (!"java".equals(name) && !"java.exe".equals(name)) {
+            return false;
+        }
+        for (String arg : command) {
+            if (arg.startsWith("-javaagent:" + agentJar)) {
+                return false; // started with the agent already
+            }
+        }
+        return true;
+    }
+
+    static List<String> withAgent(List<String> command) {
+        final long offset = VirtualClock.get().System_currentTimeMillis() - SystemClock.instance().System_currentTimeMillis();
+        final List<String> cmd = new ArrayList<>(command.size() + 2);
+        cmd.add(command.get(0));
+        cmd.add("-Xbootclasspath/a:" + agentJar);
+        cmd.add("-javaagent:" + agentJar + "=" + agentArguments + "offset=" + offset);
+        cmd.addAll(command.subList(1, command.size()));
+        return cmd;
+    }
+
+    /**
+     * The agent's classes are loaded from the boot class path, which doesn't tell where they are from, but finds their files.
+     */
+    private static String findAgentJar() {
+        final URL url = ChildJvm.class.getResource(ChildJvm.class.getSimpleName() + ".class");
+        if (url == null || !"jar".equals(url.getProtocol())) {
+            return null;
+        }
+        final String path = url.getPath(); // file:/path/to/jar!/co/paralleluniverse/...
+        final int end = path.indexOf("!/");
+        if (!path.startsWith("file:") || end < 0) {
+            return null;
+        }
+        try {
+            return new File(new URL(path.substring(0, end)).toURI()).getPath();
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private ChildJvm() {
+    }
+}
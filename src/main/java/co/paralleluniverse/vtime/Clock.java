@@ -6,7 +6,14 @@
  */
 package co.paralleluniverse.vtime;
 
+import java.io.IOException;
 import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.clock.Util;
 
 /**
  * Encapsulates the behavior of all JDK time-related operations.
@@ -14,6 +21,9 @@ import java.lang.management.RuntimeMXBean;
  * Installing a clock via the {@link VirtualClock} class, will modify the operation of
  * {@link System#currentTimeMillis()}, {@link System#nanoTime()}, {@link Thread#sleep(long) Thread.sleep},
  * {@link Object#wait(long)} and any other operation relying on time or timeouts.
+ * <p>
+ * The operations added since the first release have default implementations in terms of the original ones, so that
+ * clocks written against it keep working, if with less precision.
  *
  * @author pron
  */
@@ -22,6 +32,18 @@ public interface Clock {
 
     long System_nanoTime();
 
+    /**
+     * Returns the current time in nanoseconds since the epoch, consistent with {@link #System_currentTimeMillis()}.
+     * On Java 9+, {@code Instant.now()}, {@code java.time.Clock.systemUTC()} and {@code LocalDateTime.now()} take their time
+     * from it (through {@code jdk.internal.misc.VM.getNanoTimeAdjustment}); as a single {@code long}, it carries
+     * both the seconds and the nanoseconds without allocating.
+     * <p>
+     * By default, {@link #System_currentTimeMillis()} in nanoseconds.
+     */
+    default long System_currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(System_currentTimeMillis());
+    }
+
     long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean);
 
     void Object_wait(Object obj, long timeout) throws InterruptedException;
@@ -32,7 +54,61 @@ public interface Clock {
 
     void Thread_sleep(long millis, int nanos) throws InterruptedException;
 
+    /**
+     * Behaves like {@code Thread.sleep(Duration)} (Java 19+): a negative duration doesn't sleep.
+     * By default, sleeps with {@link #Thread_sleep(long, int)}.
+     */
+    default void Thread_sleep(Duration duration) throws InterruptedException {
+        final long nanos = Util.toNanos(duration);
+        if (nanos >= 0) {
+            Thread_sleep(TimeUnit.NANOSECONDS.toMillis(nanos), (int) (nanos % 1_000_000));
+        }
+    }
+
+    default void Object_notify(Object obj) {
+        obj.notify();
+    }
+
+    default void Object_notifyAll(Object obj) {
+        obj.notifyAll();
+    }
+
     void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout);
 
+    /**
+     * Behaves like {@link java.util.concurrent.locks.LockSupport#parkUntil(Object, long) LockSupport.parkUntil} if {@code isAbsolute},
+     * or else like {@link java.util.concurrent.locks.LockSupport#parkNanos(Object, long) LockSupport.parkNanos}.
+     * Unlike {@code Unsafe.park}, this parks a virtual thread without blocking its carrier thread.
+     * By default, parks with {@link #Unsafe_park(sun.misc.Unsafe, boolean, long) Unsafe_park}, and so doesn't record the blocker.
+     */
+    default void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (isAbsolute || timeout > 0) {
+            Unsafe_park(Util.unsafe(), isAbsolute, timeout);
+        }
+    }
+
+    /**
+     * Behaves like {@link Selector#select(long)}. By default, selects for the timeout in system time.
+     */
+    default int Selector_select(Selector selector, long timeout) throws IOException {
+        return selector.select(timeout);
+    }
+
+    /**
+     * Behaves like {@code Selector.select(Consumer, long)} (Java 11+). By default, selects for the timeout in system time.
+     */
+    default int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return Util.select(selector, action, timeout);
+    }
+
+    /**
+     * Converts a socket timeout ({@code SO_TIMEOUT}) given to {@code setSoTimeout}, in this clock's milliseconds,
+     * to the one the socket is set to, in the system's. As with {@code setSoTimeout}, 0 means no timeout.
+     * By default, the timeout is left as is.
+     */
+    default int Socket_soTimeout(int timeout) {
+        return timeout;
+    }
+
     void afterGlobalClockSetup();
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.util.concurrent.*;
+
+/**
+ * A set of threads using their own clock, rather than the global one, such as the threads of one of many nodes simulated in a single JVM.
+ * <p>
+ * A thread is in a domain while it has {@link #enter() entered} it, or else if its thread group (or one of the group's parents)
+ * is {@link #bind(ThreadGroup) bound} to it. Threads created by a thread which has entered a domain start inside it as well.
+ * Tasks may be put in a domain regardless of the thread running them by {@link #wrap(Runnable) wrapping} them,
+ * or by {@link #wrap(Executor) wrapping} their executor.
+ * <p>
+ * Until the first domain is used, {@link VirtualClock#get()} returns the global clock without any lookup. After that,
+ * a thread's domain is found in a thread-local slot; the thread-group lookup is cached there until any group binding changes.
+ *
+ * @author pron
+ */
+public final class ClockDomain {
+    static volatile boolean inUse;
+
+    private static volatile int epoch; // incremented whenever group bindings change
+    private static final ConcurrentMap<ThreadGroup, ClockDomain> groups = new ConcurrentHashMap<>();
+    private static final InheritableThreadLocal<Slot> slot = new InheritableThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            return new Slot(null);
+        }
+
+        @Override
+        protected Slot childValue(Slot parent) {
+            return new Slot(parent.entered);
+        }
+    };
+
+    private final String name;
+    private final Clock clock;
+
+    /**
+     * Creates a new domain.
+     *
+     * @param name the domain's name, for diagnostics
+     * @param clock the clock used by the domain's threads
+     */
+    public ClockDomain(String name, Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+        this.clock = clock;
+    }
+
+    @Override
+    public String toString() {
+        return "ClockDomain{name=" + name + " clock=" + clock + '}';
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the domain of the current thread, or {@code null} if it uses the global clock
+     */
+    public static ClockDomain current() {
+        return inUse ? slot.get().resolve() : null;
+    }
+
+    /**
+     * Puts the current thread in this domain until the returned binding is closed, when its previous domain is restored.
+     * Threads the current thread creates in the meantime start in this domain, and stay in it.
+     *
+     * @return the binding, which must be closed by the current thread
+     */
+    public Binding enter() {
+        inUse = true;
+        final Slot s = slot.get();
+        final ClockDomain previous = s.entered;
+        s.entered = this;
+        return new Binding() {
+            @Override
+            public void close() {
+                if (s != slot.get()) {
+                    throw new IllegalStateException("Domain must be exited by the thread which entered it");
+                }
+                if (s.entered == ClockDomain.this) {
+                    s.entered = previous;
+                }
+            }
+        };
+    }
+
+    /**
+     * Puts all the threads of the given group, and of its subgroups, which haven't entered a domain, in this domain,
+     * until the returned binding is closed.
+     *
+     * @param group the thread group
+     * @return the binding
+     */
+    public Binding bind(final ThreadGroup group) {
+        if (groups.putIfAbsent(group, this) != null) {
+            throw new IllegalStateException("Thread group " + group.getName() + " is already bound to a domain");
+        }
+        inUse = true;
+        groupsChanged();
+        return new Binding() {
+            @Override
+            public void close() {
+                if (groups.remove(group, ClockDomain.this)) {
+                    groupsChanged();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a task running the given one in this domain, whichever thread runs it
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                final Binding b = enter();
+                try {
+                    task.run();
+                } finally {
+                    b.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a task running the given one in this domain, whichever thread runs it
+     */
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                final Binding b = enter();
+                try {
+                    return task.call();
+                } finally {
+                    b.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return an executor running all tasks submitted to it in this domain, using the given executor
+     */
+    public Executor wrap(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executor.execute(wrap(command));
+            }
+        };
+    }
+
+    private static void groupsChanged() {
+        // called after the change, so that a lookup that missed it is cached under the old epoch
+        synchronized (groups) {
+            epoch++;
+        }
+    }
+
+    static Clock resolve(Clock global) {
+        final Slot s = slot.get();
+        if (s.eventTime != null && s.eventTime.source != null) {
+            return s.eventTime;
+        }
+        final ClockDomain d = s.resolve();
+        return d != null ? d.clock : global;
+    }
+
+    /**
+     * @return the current thread's event-time clock
+     */
+    static EventTimeClock eventTime() {
+        inUse = true;
+        final Slot s = slot.get();
+        if (s.eventTime == null) {
+            s.eventTime = new EventTimeClock();
+        }
+        return s.eventTime;
+    }
+
+    /**
+     * A thread's or group's membership in a domain, which ends when closed.
+     */
+    public interface Binding extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Slot {
+        ClockDomain entered;
+        EventTimeClock eventTime; // not inherited: event-time scopes are lexical
+        private int cachedEpoch = -1;
+        private ClockDomain cachedGroupDomain;
+
+        Slot(ClockDomain entered) {
+            this.entered = entered;
+        }
+
+        ClockDomain resolve() {
+            if (entered != null) {
+                return entered;
+            }
+            final int e = epoch;
+            if (cachedEpoch != e) {
+                cachedGroupDomain = groups.isEmpty() ? null : lookup(Thread.currentThread().getThreadGroup());
+                cachedEpoch = e;
+            }
+            return cachedGroupDomain;
+        }
+
+        private static ClockDomain lookup(ThreadGroup g) {
+            for (; g != null; g = g.getParent()) {
+                final ClockDomain d = groups.get(g);
+                if (d != null) {
+                    return d;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import co.paralleluniverse.vtime.clock.SystemClock;
+
+/**
+ * Counts the calls to the time methods replaced by the agent, and the virtual time requested by timed sleeps, waits and parks,
+ * when the agent is given the {@code stats} option.
+ * <p>
+ * Whether the calls are counted is read once, into {@link #ENABLED}, which the JIT compiler takes for a constant,
+ * so when they aren't, the counting is compiled out of {@link co.paralleluniverse.vtime.boot.ClockProxy ClockProxy}.
+ * The counters are {@link LongAdder}s, whose cells are striped across threads and padded to their own cache lines.
+ *
+ * @author pron
+ */
+public final class ClockStats implements ClockStatsMXBean {
+    static final String ENABLED_PROPERTY = "co.paralleluniverse.vtime.stats";
+    public static final String OBJECT_NAME = "co.paralleluniverse.vtime:type=ClockStats";
+    private static final long DEFAULT_PERIOD_MILLIS = 10_000;
+
+    /**
+     * Whether the calls are counted. Set by the agent before this class is initialized.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    public static final int SYSTEM_CURRENT_TIME_MILLIS = 0;
+    public static final int SYSTEM_NANO_TIME = 1;
+    public static final int VM_GET_NANO_TIME_ADJUSTMENT = 2;
+    public static final int RUNTIME_MXBEAN_GET_START_TIME = 3;
+    public static final int OBJECT_WAIT = 4;
+    public static final int THREAD_SLEEP = 5;
+    public static final int OBJECT_NOTIFY = 6;
+    public static final int OBJECT_NOTIFY_ALL = 7;
+    public static final int UNSAFE_PARK = 8;
+    public static final int LOCK_SUPPORT_PARK_NANOS = 9;
+    public static final int LOCK_SUPPORT_PARK_UNTIL = 10;
+    public static final int SELECTOR_SELECT = 11;
+    public static final int SOCKET_SET_SO_TIMEOUT = 12;
+    public static final int SERVER_SOCKET_SET_SO_TIMEOUT = 13;
+    public static final int DATAGRAM_SOCKET_SET_SO_TIMEOUT = 14;
+
+    private static final String[] METHODS = {
+        "System_currentTimeMillis",
+        "System_nanoTime",
+        "VM_getNanoTimeAdjustment",
+        "RuntimeMXBean_getStartTime",
+        "Object_wait",
+        "Thread_sleep",
+        "Object_notify",
+        "Object_notifyAll",
+        "Unsafe_park",
+        "LockSupport_parkNanos",
+        "LockSupport_parkUntil",
+        "Selector_select",
+        "Socket_setSoTimeout",
+        "ServerSocket_setSoTimeout",
+        "DatagramSocket_setSoTimeout",
+    };
+
+    private static final int SLEEP = 0;
+    private static final int WAIT = 1;
+    private static final int PARK = 2;
+    private static final String[] KINDS = {"sleep", "wait", "park"};
+
+    private static final LongAdder[] calls = adders(METHODS.length);
+    private static final LongAdder[] requestedNanos = adders(KINDS.length);
+
+    /**
+     * Counts a call to the given method.
+     */
+    public static void call(int method) {
+        calls[method].increment();
+    }
+
+    /**
+     * Counts a call to a timed sleep.
+     *
+     * @param nanos the virtual time requested; nothing is added if it isn't positive
+     */
+    public static void sleep(long nanos) {
+        timed(THREAD_SLEEP, SLEEP, nanos);
+    }
+
+    /**
+     * Counts a call to {@code Object.wait}.
+     *
+     * @param nanos the virtual time requested; nothing is added if it isn't positive, as when the wait is untimed
+     */
+    public static void await(long nanos) {
+        timed(OBJECT_WAIT, WAIT, nanos);
+    }
+
+    /**
+     * Counts a call to a park.
+     *
+     * @param isAbsolute whether {@code timeout} is a deadline, in milliseconds since the epoch, or a duration, in nanoseconds
+     */
+    public static void park(int method, boolean isAbsolute, long timeout) {
+        timed(method, PARK, isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - VirtualClock.get().System_currentTimeMillis()) : timeout);
+    }
+
+    private static void timed(int method, int kind, long nanos) {
+        calls[method].increment();
+        if (nanos > 0) {
+            requestedNanos[kind].add(nanos);
+        }
+    }
+
+    /**
+     * Called by the agent, when {@code stats} is configured, to register the MBean and, if a file is given, start writing to it.
+     *
+     * @param conf {@code [file[#period millis]]}: the file the counters are periodically written to, in Prometheus's text format
+     */
+    static void start(String conf) {
+        final ClockStats stats = new ClockStats();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Logger.warning("Unable to register %s:", e, OBJECT_NAME);
+        }
+        if (!conf.isEmpty()) {
+            final int pos = conf.indexOf('#');
+            final Path file = Paths.get(pos < 0 ? conf : conf.substring(0, pos));
+            final long periodMillis = pos < 0 ? DEFAULT_PERIOD_MILLIS : Long.parseLong(conf.substring(pos + 1));
+            if (periodMillis <= 0) {
+                throw new IllegalArgumentException("Period must be positive; was " + periodMillis);
+            }
+            stats.startWriter(file, periodMillis);
+        }
+    }
+
+    ClockStats() {
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        final Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < METHODS.length; i++) {
+            map.put(METHODS[i], calls[i].sum());
+        }
+        return map;
+    }
+
+    @Override
+    public long getRequestedSleepNanos() {
+        return requestedNanos[SLEEP].sum();
+    }
+
+    @Override
+    public long getRequestedWaitNanos() {
+        return requestedNanos[WAIT].sum();
+    }
+
+    @Override
+    public long getRequestedParkNanos() {
+        return requestedNanos[PARK].sum();
+    }
+
+    private void startWriter(final Path file, final long periodMillis) {
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (;;) {
+                    try {
+                        SystemClock.instance().Thread_sleep(periodMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    write(file);
+                }
+            }
+        }, "ClockStats writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(file);
+            }
+        }, "ClockStats final writer"));
+    }
+
+    /**
+     * Writes the counters to a temporary file, then moves it over the given one, so that readers never see a partial file.
+     */
+    void write(Path file) {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                w.write("# HELP timewarp_calls_total Calls to time methods replaced by the timewarp agent.\n");
+                w.write("# TYPE timewarp_calls_total counter\n");
+                for (int i = 0; i < METHODS.length; i++) {
+                    w.write("timewarp_calls_total{method=\"" + METHODS[i] + "\"} " + calls[i].sum() + "\n");
+                }
+                w.write("# HELP timewarp_requested_seconds_total Virtual time requested by timed sleeps, waits and parks.\n");
+                w.write("# TYPE timewarp_requested_seconds_total counter\n");
+                for (int i = 0; i < KINDS.length; i++) {
+                    w.write("timewarp_requested_seconds_total{kind=\"" + KINDS[i] + "\"} " + requestedNanos[i].sum() / 1e9 + "\n");
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logger.warning("Unable to write clock stats to %s:", e, file);
+        }
+    }
+
+    private static LongAdder[] adders(int n) {
+        final LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
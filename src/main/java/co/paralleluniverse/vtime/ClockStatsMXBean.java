@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.util.Map;
+
+/**
+ * The counts of calls to the time methods replaced by the agent, registered as {@value ClockStats#OBJECT_NAME}.
+ *
+ * @author pron
+ */
+public interface ClockStatsMXBean {
+    /**
+     * @return the number of calls to each method, by the name of the {@link co.paralleluniverse.vtime.boot.ClockProxy ClockProxy}
+     *         method replacing it
+     */
+    Map<String, Long> getCalls();
+
+    /**
+     * @return the virtual time, in nanoseconds, threads have asked to sleep
+     */
+    long getRequestedSleepNanos();
+
+    /**
+     * @return the virtual time, in nanoseconds, threads have asked to wait for, in timed {@code Object.wait}s
+     */
+    long getRequestedWaitNanos();
+
+    /**
+     * @return the virtual time, in nanoseconds, threads have asked to park for, in timed parks
+     */
+    long getRequestedParkNanos();
+}
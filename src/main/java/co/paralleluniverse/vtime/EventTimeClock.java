@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.io.IOException;
+import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A thread's clock while it runs in an event-time scope (see {@link VirtualClock#runAt(long, Runnable) runAt}).
+ * It shifts the wall-clock time of the clock in effect when the outermost scope was entered, like an {@code OffsetClock}.
+ * Each thread has a single instance, which is re-targeted on entering and leaving scopes, so scopes don't allocate.
+ *
+ * @author pron
+ */
+final class EventTimeClock implements Clock {
+    Clock source; // null when not in a scope
+    long offset;
+    private Runnable task; // the task passed to runAt, until its scope is entered
+    private final Callable<Void> runner = new Callable<Void>() {
+        @Override
+        public Void call() {
+            final Runnable t = task;
+            task = null;
+            t.run();
+            return null;
+        }
+    };
+
+    /**
+     * @return this thread's {@code Callable} running the given task, with which {@code runAt} enters its scope as {@code callAt}
+     */
+    Callable<Void> runner(Runnable task) {
+        this.task = task;
+        return runner;
+    }
+
+    @Override
+    public String toString() {
+        return "EventTimeClock{source=" + source + " offset=" + offset + '}';
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        return source.System_currentTimeMillis() + offset;
+    }
+
+    @Override
+    public long System_nanoTime() {
+        return source.System_nanoTime();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        return source.System_currentTimeNanos() + TimeUnit.MILLISECONDS.toNanos(offset);
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        return source.RuntimeMXBean_getStartTime(runtimeMXBean) + offset;
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        source.Object_wait(obj, timeout);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        source.Object_wait(obj, timeout, nanos);
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        source.Thread_sleep(millis);
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        source.Thread_sleep(millis, nanos);
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        source.Thread_sleep(duration);
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        // an absolute deadline was computed from the shifted time
+        source.Unsafe_park(unsafe, isAbsolute, isAbsolute ? timeout - offset : timeout);
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        source.LockSupport_park(blocker, isAbsolute, isAbsolute ? timeout - offset : timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return source.Selector_select(selector, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return source.Selector_select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout(timeout);
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+        source.afterGlobalClockSetup();
+    }
+}
@@ -7,14 +7,36 @@
 package co.paralleluniverse.vtime;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Method;
 import java.util.*;
+import co.paralleluniverse.vtime.clock.AdaptiveClock;
+import co.paralleluniverse.vtime.clock.ElidingClock;
 import co.paralleluniverse.vtime.clock.OffsetClock;
+import co.paralleluniverse.vtime.clock.PauseCompensatedClock;
 import co.paralleluniverse.vtime.clock.ScaledClock;
 import co.paralleluniverse.vtime.clock.SystemClock;
+import co.paralleluniverse.vtime.clock.manual.DeterministicClock;
 import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import co.paralleluniverse.vtime.clock.manual.ParallelClock;
+import co.paralleluniverse.vtime.clock.replay.RecordingClock;
+import co.paralleluniverse.vtime.clock.replay.ReplayClock;
 
 public final class JavaAgent {
     private static final String INCLUDE_METHODS_KEY = "includesMethods";
+    private static final String PROPAGATE_KEY = "propagate";
+    private static final String STATS_KEY = "stats";
+    private static final String PROFILE_KEY = "profile";
+    private static final String DETERMINISTIC_KEY = "deterministic";
+    private static final String[] RETRANSFORMED_PACKAGES = {
+        "java.util.concurrent.",
+        "java.time.",
+    };
+    private static final String[] PRELOADED_CLASSES = {
+        "java.util.concurrent.ScheduledThreadPoolExecutor",
+        "java.util.concurrent.ScheduledThreadPoolExecutor$DelayedWorkQueue",
+        "java.util.concurrent.ScheduledThreadPoolExecutor$ScheduledFutureTask",
+    };
 
     public static void premain(String agentArguments, Instrumentation instrumentation) {
         // IMPORTANT : until the transformer is not setup avoid to use class that involves wrapped methods
@@ -24,9 +46,18 @@ public final class JavaAgent {
         // eg: TimerClock
 
         List<ConfEntry> conf = parseConfiguration(agentArguments);
-        setupTransformer(instrumentation, conf);
+        ConfEntry stats = setupStats(conf);
+        ConfEntry profile = removeEntry(conf, PROFILE_KEY);
+        exportTimeSource(instrumentation);
+        setupTransformer(instrumentation, conf, profile != null);
 
         setupClock(conf);
+        if (stats != null) {
+            ClockStats.start(stats.getValue());
+        }
+        if (profile != null) {
+            CallSites.start(profile.getValue());
+        }
     }
 
     private static List<ConfEntry> parseConfiguration(String agentArguments) {
@@ -46,23 +77,131 @@ public final class JavaAgent {
         return conf;
     }
 
-    private static void setupTransformer(Instrumentation instrumentation, List<ConfEntry> conf) {
+    /**
+     * Enables the {@link ClockStats} counters, which must be done before {@code ClockProxy} is first called.
+     */
+    private static ConfEntry setupStats(List<ConfEntry> conf) {
+        ConfEntry stats = removeEntry(conf, STATS_KEY);
+        if (stats != null) {
+            System.setProperty(ClockStats.ENABLED_PROPERTY, "true");
+        }
+        return stats;
+    }
+
+    /**
+     * @return the last entry with the given key, or {@code null} if none; all are removed
+     */
+    private static ConfEntry removeEntry(List<ConfEntry> conf, String key) {
+        ConfEntry entry = null;
+        Iterator<ConfEntry> it = conf.iterator();
+        while (it.hasNext()) {
+            ConfEntry e = it.next();
+            if (key.equals(e.getKey())) {
+                it.remove();
+                entry = e;
+            }
+        }
+        return entry;
+    }
+
+    private static void setupTransformer(Instrumentation instrumentation, List<ConfEntry> conf, boolean profile) {
         Set<String> includedMethods = null;
+        boolean propagate = false;
+        // child JVMs are given their own clock, and neither profile nor stats, whose file the child's would overwrite
+        List<String> childArguments = new ArrayList<>();
         Iterator<ConfEntry> it = conf.iterator();
         while (it.hasNext()) {
             ConfEntry e = it.next();
             if (INCLUDE_METHODS_KEY.equals(e.getKey())) {
                 it.remove();
+                childArguments.add(INCLUDE_METHODS_KEY + "=" + e.getValue());
                 if (includedMethods == null) {
                     includedMethods = new HashSet<>();
                 }
                 for (String includedMethod : e.getValue().split(":")) {
                     includedMethods.add(includedMethod.trim());
                 }
+            } else if (PROPAGATE_KEY.equals(e.getKey())) {
+                it.remove();
+                propagate = true;
             }
         }
-        instrumentation.addTransformer(new VirtualTimeClassTransformer(includedMethods));
+        if (propagate) {
+            childArguments.add(PROPAGATE_KEY);
+            propagate = ChildJvm.enable(childArguments);
+        }
+        instrumentation.addTransformer(new VirtualTimeClassTransformer(includedMethods, capturesNotify(conf), propagate, profile),
+                instrumentation.isRetransformClassesSupported());
         Logger.info("Instrumentation transformer in place");
+        retransformLoadedClasses(instrumentation);
+    }
+
+    /**
+     * Only the deterministic clock needs the calls to {@code Object.notify} and {@code notifyAll}, which are left alone otherwise.
+     */
+    private static boolean capturesNotify(List<ConfEntry> conf) {
+        for (ConfEntry e : conf) {
+            if (DETERMINISTIC_KEY.equals(e.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * On Java 9+, exports {@code jdk.internal.misc} to the agent, so that the {@link SystemClock} can read the time
+     * with the nanosecond precision {@code java.time} has.
+     */
+    private static void exportTimeSource(Instrumentation instrumentation) {
+        try {
+            Method getModule = Class.class.getMethod("getModule");
+            Method redefineModule = Instrumentation.class.getMethod("redefineModule",
+                    getModule.getReturnType(), Set.class, Map.class, Map.class, Set.class, Map.class);
+            Object javaBase = getModule.invoke(Object.class);
+            Object agent = getModule.invoke(SystemClock.class);
+            redefineModule.invoke(instrumentation, javaBase, Collections.emptySet(),
+                    Collections.singletonMap("jdk.internal.misc", Collections.singleton(agent)),
+                    Collections.emptyMap(), Collections.emptySet(), Collections.emptyMap());
+        } catch (NoSuchMethodException e) {
+            // Java 8, whose java.time takes the time from System.currentTimeMillis
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Logger.warning("Unable to export jdk.internal.misc; the system time will have millisecond precision", e);
+        }
+    }
+
+    /**
+     * {@code java.util.concurrent} is loaded before the agent runs, so the timed waits of its locks, queues and futures,
+     * on which virtual threads block, too, would otherwise only use virtual time if classes loaded later call them;
+     * so may be {@code java.time}, whose clock would then keep the system time.
+     */
+    private static void retransformLoadedClasses(Instrumentation instrumentation) {
+        // the JDK first loads these when a virtual thread parks, at a point where class loading isn't reported to agents,
+        // so they would be left with the system time while the rest of the executor uses the virtual time
+        for (String name : PRELOADED_CLASSES) {
+            try {
+                Class.forName(name, false, null);
+            } catch (ClassNotFoundException e) {
+                Logger.warning("Class %s not found", name);
+            }
+        }
+        if (!instrumentation.isRetransformClassesSupported()) {
+            Logger.warning("Retransformation not supported; classes loaded before the agent will not use virtual time");
+            return;
+        }
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+            for (String p : RETRANSFORMED_PACKAGES) {
+                if (c.getName().startsWith(p) && instrumentation.isModifiableClass(c)) {
+                    classes.add(c);
+                    break;
+                }
+            }
+        }
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (UnmodifiableClassException e) {
+            Logger.warning("Retransformation of classes loaded before the agent failed:", e);
+        }
     }
 
     private static void setupClock(List<ConfEntry> conf) {
@@ -85,9 +224,30 @@ public final class JavaAgent {
             case "scaled":
                 return ScaledClock.create(clock, clockConf);
 
+            case "adaptive":
+                return AdaptiveClock.create(clock, clockConf);
+
+            case "compensated":
+                return PauseCompensatedClock.create(clock, clockConf);
+
+            case "eliding":
+                return ElidingClock.create(clock, clockConf);
+
             case "manual":
                 return ManualClock.create(clock, clockConf);
 
+            case "parallel":
+                return ParallelClock.create(clock, clockConf);
+
+            case "deterministic":
+                return DeterministicClock.create(clock, clockConf);
+
+            case "record":
+                return RecordingClock.create(clock, clockConf);
+
+            case "replay":
+                return ReplayClock.create(clock, clockConf);
+
             default:
                 Logger.warning("Unsupported clock type %s", clockType);
                 return clock;
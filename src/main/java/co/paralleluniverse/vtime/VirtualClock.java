@@ -6,15 +6,23 @@
  */
 package co.paralleluniverse.vtime;
 
+import java.util.*;
+import java.util.concurrent.Callable;
 import co.paralleluniverse.vtime.clock.SystemClock;
 
 /**
  * Sets or gets the virtual clock to be used by the system.
+ * <p>
+ * The global clock is used by all threads, except those in a {@link ClockDomain}, which use their domain's clock.
  *
  * @author pron
  */
 public final class VirtualClock {
-    private static Clock globalClock = SystemClock.instance(); // note that this isn't volatile
+    private static volatile Clock globalClock = SystemClock.instance();
+
+    private static final Object lock = new Object();
+    private static Clock baseClock = globalClock;                // the clock set by the agent; guarded by lock
+    private static final List<Scope> scopes = new ArrayList<>(); // installed scopes, innermost last; guarded by lock
 
     /**
      * Puts the given clock in effect for the all threads
@@ -22,16 +30,125 @@ public final class VirtualClock {
      * @param clock the {@link Clock} to be used for global clock
      */
     static void setGlobal(Clock clock) {
-        globalClock = clock;
+        synchronized (lock) {
+            baseClock = clock;
+            update();
+        }
+    }
+
+    /**
+     * Puts the given clock in effect for all threads, until the returned scope is closed, when the clock previously in effect is restored.
+     * <p>
+     * Scopes nest: the clock of the most recently installed scope that is still open is in effect.
+     * Closing a scope that isn't the innermost one only removes its clock from the stack.
+     *
+     * @param clock the {@link Clock} to be used for global clock
+     * @return the scope, which must be closed to uninstall the clock
+     */
+    public static Scope install(Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException();
+        }
+        final Scope scope = new Scope(clock);
+        synchronized (lock) {
+            scopes.add(scope);
+            update();
+        }
+        return scope;
+    }
+
+    /**
+     * Runs the given task with the current thread's wall-clock time ({@code System.currentTimeMillis()} and
+     * {@code RuntimeMXBean.getStartTime()}) shifted so that it starts at the given time, and then flows on as usual.
+     * Other threads, including those the task starts, are unaffected, as is {@code System.nanoTime()}.
+     * <p>
+     * Scopes nest, an inner scope shifting the same underlying clock as the outermost one.
+     * Entering a scope allocates nothing, beyond the first time on each thread.
+     *
+     * @param epochMillis the time at which the task starts, in milliseconds since the epoch
+     * @param task the task
+     */
+    public static void runAt(long epochMillis, Runnable task) {
+        try {
+            callAt(epochMillis, ClockDomain.eventTime().runner(task));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AssertionError(e); // a Runnable throws no checked exceptions
+        }
+    }
+
+    /**
+     * Calls the given task with the current thread's wall-clock time shifted so that it starts at the given time.
+     *
+     * @param epochMillis the time at which the task starts, in milliseconds since the epoch
+     * @param task the task
+     * @return the task's result
+     * @throws Exception if the task throws
+     * @see #runAt(long, Runnable)
+     */
+    public static <V> V callAt(long epochMillis, Callable<V> task) throws Exception {
+        final EventTimeClock c = ClockDomain.eventTime();
+        final Clock previousSource = c.source;
+        final long previousOffset = c.offset;
+        final Clock source = previousSource != null ? previousSource : get();
+        c.offset = epochMillis - source.System_currentTimeMillis();
+        c.source = source;
+        try {
+            return task.call();
+        } finally {
+            c.source = previousSource;
+            c.offset = previousOffset;
+        }
     }
 
     /**
      * @return the clock currently in effect for the current thread.
      */
     public static Clock get() {
-        return globalClock;
+        final Clock global = globalClock;
+        return ClockDomain.inUse ? ClockDomain.resolve(global) : global;
+    }
+
+    private static void update() {
+        globalClock = scopes.isEmpty() ? baseClock : scopes.get(scopes.size() - 1).clock;
     }
 
     private VirtualClock() {
     }
+
+    /**
+     * A clock {@link #install(Clock) installed} until the scope is closed.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final Clock clock;
+
+        private Scope(Clock clock) {
+            this.clock = clock;
+        }
+
+        /**
+         * @return the installed clock
+         */
+        public Clock clock() {
+            return clock;
+        }
+
+        /**
+         * Uninstalls the clock. Closing a scope more than once has no effect.
+         */
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if (scopes.remove(this)) {
+                    update();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "VirtualClock.Scope{clock=" + clock + '}';
+        }
+    }
 }
@@ -8,14 +8,21 @@ package co.paralleluniverse.vtime;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.security.ProtectionDomain;
 import java.util.*;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import co.paralleluniverse.vtime.boot.CallSiteProxy;
 import co.paralleluniverse.vtime.boot.ClockProxy;
 
 /**
@@ -23,12 +30,28 @@ import co.paralleluniverse.vtime.boot.ClockProxy;
  */
 class VirtualTimeClassTransformer implements ClassFileTransformer {
     private static final String PACKAGE = VirtualClock.class.getPackage().getName().replace('.', '/');
+    // on Java 8 it parks through sun.misc.Unsafe; as calls to it are captured, capturing those too would apply the clock twice,
+    // and send the clocks' own parks back to the clock
+    private static final String LOCK_SUPPORT = "java/util/concurrent/locks/LockSupport";
     private static final String CLOCK = Type.getInternalName(ClockProxy.class);
+    private static final String CALL_SITE_PROXY = Type.getInternalName(CallSiteProxy.class);
+    private static final Set<String> CLOCK_METHODS = methods(ClockProxy.class); // the names and descriptors of ClockProxy's methods
+    private static final Set<String> CALL_SITE_METHODS = methods(CallSiteProxy.class);
+    private static final String[] SOCKET_IMPLEMENTATION_PACKAGES = {"java/net/", "javax/net/", "sun/net/", "sun/nio/", "sun/security/ssl/"};
 
     private final Set<String> includedMethods;
+    private final boolean notify;
+    private final boolean propagate;
+    private final boolean profile;
 
-    VirtualTimeClassTransformer(Set<String> includedMethods) {
+    /**
+     * @param notify whether to capture {@code Object.notify} and {@code notifyAll}, which only some clocks need
+     */
+    VirtualTimeClassTransformer(Set<String> includedMethods, boolean notify, boolean propagate, boolean profile) {
         this.includedMethods = includedMethods;
+        this.notify = notify;
+        this.propagate = propagate;
+        this.profile = profile;
     }
 
     @Override
@@ -36,95 +59,255 @@ class VirtualTimeClassTransformer implements ClassFileTransformer {
             throws IllegalClassFormatException {
         try {
             if (accept(className)) {
-                return instrumentClass(classfileBuffer);
+                return instrumentClass(className, classfileBuffer);
             } else {
                 return null;
             }
         } catch (Throwable t) {
-            Logger.warning("Instrumentation by %s failed for class %s:", t, getClass().getName(), Type.getType(classBeingRedefined).getClassName());
+            Logger.warning("Instrumentation by %s failed for class %s:", t, getClass().getName(), className);
             throw t; // same effect as returning null
         }
     }
 
     private boolean accept(String className) {
-        return className != null && !className.startsWith(PACKAGE);
+        return className != null && !className.startsWith(PACKAGE) && !LOCK_SUPPORT.equals(className);
     }
 
-    private ClassVisitor createVisitor(ClassVisitor next) {
+    private ClassVisitor createVisitor(ClassVisitor next, final String className) {
         int api;
         if (System.getProperty("java.version").startsWith("1.8")) {
             api = Opcodes.ASM5;
         } else if (System.getProperty("java.version").startsWith("10")) {
             api = Opcodes.ASM6;
         } else {
-            api = Opcodes.ASM7;
+            api = Opcodes.ASM9;
         }
         return new ClassVisitor(api, next) {
             @Override
-            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                return new MethodVisitor(api, super.visitMethod(access, name, desc, signature, exceptions)) {
+            public MethodVisitor visitMethod(int access, final String methodName, final String methodDesc, String signature, String[] exceptions) {
+                return new MethodVisitor(api, super.visitMethod(access, methodName, methodDesc, signature, exceptions)) {
+                    private int line;
+                    private int sites; // the number of call sites profiled so far in the method
+                    private boolean profiled; // whether a call site ID has been pushed onto the stack
+
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        this.line = line;
+                        super.visitLineNumber(line, start);
+                    }
+
                     @Override
                     public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-                        if (!captureTimeCall(owner, name, desc)) {
+                        final Handle clockMethod = clockMethod(className, opcode == Opcodes.INVOKESPECIAL, owner, name, desc);
+                        if (clockMethod != null && profile && CALL_SITE_METHODS.contains(clockMethod.getName() + callSiteDesc(clockMethod.getDesc()))) {
+                            super.visitLdcInsn(CallSites.register(className, methodName, methodDesc, line, sites++));
+                            super.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SITE_PROXY, clockMethod.getName(), callSiteDesc(clockMethod.getDesc()), false);
+                            profiled = true;
+                        } else if (clockMethod != null) {
+                            super.visitMethodInsn(Opcodes.INVOKESTATIC, clockMethod.getOwner(), clockMethod.getName(), clockMethod.getDesc(), false);
+                        } else {
                             super.visitMethodInsn(opcode, owner, name, desc, itf);
                         }
                     }
 
-                    private boolean captureTimeCall(String owner, String name, String desc) {
-                        switch (owner) {
-                            case "java/lang/Object":
-                                if ("wait".equals(name)) {
-                                    return callClockMethod("Object_wait", instanceToStatic(owner, desc));
-                                }
-                                break;
-                            case "java/lang/System":
-                                switch (name) {
-                                    case "nanoTime":
-                                        return callClockMethod("System_nanoTime", desc);
-                                    case "currentTimeMillis":
-                                        return callClockMethod("System_currentTimeMillis", desc);
-                                }
-                                break;
-                            case "java/lang/Thread":
-                                if ("sleep".equals(name)) {
-                                    return callClockMethod("Thread_sleep", desc);
-                                }
-                                break;
-                            case "sun/misc/Unsafe":
-                                if ("park".equals(name)) {
-                                    return callClockMethod("Unsafe_park", instanceToStatic(owner, desc));
-                                }
-                                break;
-                            case "java/lang/management/RuntimeMXBean":
-                                if ("getStartTime".equals(name)) {
-                                    return callClockMethod("RuntimeMXBean_getStartTime", instanceToStatic(owner, desc));
-                                }
-                                break;
-                        }
-                        return false;
+                    @Override
+                    public void visitMaxs(int maxStack, int maxLocals) {
+                        // the ID is pushed on top of the call's arguments, and popped by the call
+                        super.visitMaxs(profiled ? maxStack + 1 : maxStack, maxLocals);
                     }
 
-                    private boolean callClockMethod(String name, String desc) {
-                        if (includedMethods == null || includedMethods.contains(name)) {
-                            super.visitMethodInsn(Opcodes.INVOKESTATIC, CLOCK, name, desc, false);
-                            return true;
-                        } else {
-                            return false;
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                        // a method reference, such as System::nanoTime, is a handle passed to the bootstrap method,
+                        // and is called from a hidden class, which isn't transformed
+                        if (!isSerializableLambda(bsm, bsmArgs)) {
+                            for (int i = 0; i < bsmArgs.length; i++) {
+                                bsmArgs[i] = captureTimeConstant(className, bsmArgs[i]);
+                            }
                         }
+                        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
                     }
 
-                    private String instanceToStatic(String owner, String desc) {
-                        return "(L" + owner + ";" + desc.substring(1);
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        super.visitLdcInsn(captureTimeConstant(className, value));
                     }
                 };
             }
         };
     }
 
-    private byte[] instrumentClass(byte[] classfileBuffer) {
+    private Object captureTimeConstant(String className, Object constant) {
+        if (constant instanceof Handle) {
+            final Handle h = (Handle) constant;
+            if (h.getTag() >= Opcodes.H_INVOKEVIRTUAL && h.getTag() != Opcodes.H_NEWINVOKESPECIAL) {
+                final Handle clockMethod = clockMethod(className, h.getTag() == Opcodes.H_INVOKESPECIAL, h.getOwner(), h.getName(), h.getDesc());
+                if (clockMethod != null) {
+                    return clockMethod;
+                }
+            }
+        } else if (constant instanceof ConstantDynamic) {
+            final ConstantDynamic c = (ConstantDynamic) constant;
+            final Object[] bsmArgs = new Object[c.getBootstrapMethodArgumentCount()];
+            boolean captured = false;
+            for (int i = 0; i < bsmArgs.length; i++) {
+                bsmArgs[i] = captureTimeConstant(className, c.getBootstrapMethodArgument(i));
+                captured |= bsmArgs[i] != c.getBootstrapMethodArgument(i);
+            }
+            if (captured) {
+                return new ConstantDynamic(c.getName(), c.getDescriptor(), c.getBootstrapMethod(), bsmArgs);
+            }
+        }
+        return constant;
+    }
+
+    /**
+     * A serializable lambda's class deserializes it by comparing the names in its implementation method handle
+     * against those it was compiled with, so its handle must be left as is.
+     */
+    private static boolean isSerializableLambda(Handle bsm, Object[] bsmArgs) {
+        return "java/lang/invoke/LambdaMetafactory".equals(bsm.getOwner()) && "altMetafactory".equals(bsm.getName())
+                && bsmArgs.length > 3 && bsmArgs[3] instanceof Integer
+                && ((Integer) bsmArgs[3] & LambdaMetafactory.FLAG_SERIALIZABLE) != 0;
+    }
+
+    /**
+     * @param caller the class making the call
+     * @param special whether the call is an {@code invokespecial}, e.g. to a superclass's method
+     * @return the {@link ClockProxy} method replacing the given one, or {@code null} if it isn't captured
+     */
+    private Handle clockMethod(String caller, boolean special, String owner, String name, String desc) {
+        switch (owner) {
+            case "java/lang/Object":
+                switch (name) {
+                    case "wait":
+                        return clockMethod("Object_wait", instanceToStatic(owner, desc));
+                    case "notify":
+                        return notify ? clockMethod("Object_notify", instanceToStatic(owner, desc)) : null;
+                    case "notifyAll":
+                        return notify ? clockMethod("Object_notifyAll", instanceToStatic(owner, desc)) : null;
+                }
+                break;
+            case "java/lang/System":
+                switch (name) {
+                    case "nanoTime":
+                        return clockMethod("System_nanoTime", desc);
+                    case "currentTimeMillis":
+                        return clockMethod("System_currentTimeMillis", desc);
+                }
+                break;
+            case "java/lang/Thread":
+                if ("sleep".equals(name)) {
+                    return clockMethod("Thread_sleep", desc);
+                }
+                break;
+            case "sun/misc/Unsafe":
+                if ("park".equals(name)) {
+                    return clockMethod("Unsafe_park", instanceToStatic(owner, desc));
+                }
+                break;
+            case "java/util/concurrent/locks/LockSupport":
+                // on Java 9+ timed parks no longer go through sun.misc.Unsafe, and a virtual thread's never do
+                switch (name) {
+                    case "parkNanos":
+                        return clockMethod("LockSupport_parkNanos", desc);
+                    case "parkUntil":
+                        return clockMethod("LockSupport_parkUntil", desc);
+                }
+                break;
+            case "jdk/internal/misc/VM":
+                // on Java 9+ java.time takes the current time from here, rather than from System.currentTimeMillis
+                if ("getNanoTimeAdjustment".equals(name)) {
+                    return clockMethod("VM_getNanoTimeAdjustment", desc);
+                }
+                break;
+            case "java/lang/management/RuntimeMXBean":
+                if ("getStartTime".equals(name)) {
+                    return clockMethod("RuntimeMXBean_getStartTime", instanceToStatic(owner, desc));
+                }
+                break;
+            case "java/nio/channels/Selector":
+                // the proxies call these virtually, so an override calling its super method would call itself
+                if ("select".equals(name) && !special) {
+                    return clockMethod("Selector_select", instanceToStatic(owner, desc));
+                }
+                break;
+            case "java/net/Socket":
+            case "javax/net/ssl/SSLSocket":
+                if ("setSoTimeout".equals(name) && !special && !isSocketImplementation(caller)) {
+                    return clockMethod("Socket_setSoTimeout", instanceToStatic("java/net/Socket", desc));
+                }
+                break;
+            case "java/net/ServerSocket":
+            case "javax/net/ssl/SSLServerSocket":
+                if ("setSoTimeout".equals(name) && !special && !isSocketImplementation(caller)) {
+                    return clockMethod("ServerSocket_setSoTimeout", instanceToStatic("java/net/ServerSocket", desc));
+                }
+                break;
+            case "java/net/DatagramSocket":
+            case "java/net/MulticastSocket":
+                if ("setSoTimeout".equals(name) && !special && !isSocketImplementation(caller)) {
+                    return clockMethod("DatagramSocket_setSoTimeout", instanceToStatic("java/net/DatagramSocket", desc));
+                }
+                break;
+            case "java/lang/ProcessBuilder":
+                // not a time method, so not subject to includesMethods
+                if ("start".equals(name) && propagate) {
+                    return new Handle(Opcodes.H_INVOKESTATIC, CLOCK, "ProcessBuilder_start", instanceToStatic(owner, desc), false);
+                }
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Sockets layered over others, such as SSL sockets, pass the timeout they are given on to the socket beneath,
+     * which must not scale it again.
+     */
+    private static boolean isSocketImplementation(String className) {
+        for (String p : SOCKET_IMPLEMENTATION_PACKAGES) {
+            if (className.startsWith(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Handle clockMethod(String name, String desc) {
+        // overloads ClockProxy doesn't have, such as those added by later JDKs, are left alone
+        if (CLOCK_METHODS.contains(name + desc) && (includedMethods == null || includedMethods.contains(name))) {
+            return new Handle(Opcodes.H_INVOKESTATIC, CLOCK, name, desc, false);
+        } else {
+            return null;
+        }
+    }
+
+    private static String instanceToStatic(String owner, String desc) {
+        return "(L" + owner + ";" + desc.substring(1);
+    }
+
+    /**
+     * @return the descriptor of the {@link CallSiteProxy} method profiling a call to the {@link ClockProxy} method of the given one
+     */
+    private static String callSiteDesc(String desc) {
+        final int end = desc.indexOf(')');
+        return desc.substring(0, end) + "I" + desc.substring(end);
+    }
+
+    private static Set<String> methods(Class<?> proxy) {
+        final Set<String> methods = new HashSet<>();
+        for (Method m : proxy.getDeclaredMethods()) {
+            if (Modifier.isPublic(m.getModifiers()) && Modifier.isStatic(m.getModifiers())) {
+                methods.add(m.getName() + Type.getMethodDescriptor(m));
+            }
+        }
+        return methods;
+    }
+
+    private byte[] instrumentClass(String className, byte[] classfileBuffer) {
         ClassReader cr = new ClassReader(classfileBuffer);
         ClassWriter cw = new ClassWriter(cr, 0);
-        ClassVisitor cv = createVisitor(cw);
+        ClassVisitor cv = createVisitor(cw, className);
         cr.accept(cv, 0);
         return cw.toByteArray();
     }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.boot;
+
+import java.io.IOException;
+import java.lang.management.RuntimeMXBean;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.CallSites;
+import co.paralleluniverse.vtime.clock.Util;
+
+/**
+ * The methods calls are replaced with when the agent profiles them: those of {@link ClockProxy},
+ * each taking the {@link CallSites call site}'s ID as an additional, last, argument.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class CallSiteProxy {
+    private CallSiteProxy() {
+    }
+
+    public static long System_currentTimeMillis(int site) {
+        CallSites.call(site);
+        return ClockProxy.System_currentTimeMillis();
+    }
+
+    public static long System_nanoTime(int site) {
+        CallSites.call(site);
+        return ClockProxy.System_nanoTime();
+    }
+
+    public static long VM_getNanoTimeAdjustment(long offsetInSeconds, int site) {
+        CallSites.call(site);
+        return ClockProxy.VM_getNanoTimeAdjustment(offsetInSeconds);
+    }
+
+    public static long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean, int site) {
+        CallSites.call(site);
+        return ClockProxy.RuntimeMXBean_getStartTime(runtimeMXBean);
+    }
+
+    public static void Object_wait(Object obj, int site) throws InterruptedException {
+        CallSites.call(site);
+        ClockProxy.Object_wait(obj);
+    }
+
+    public static void Object_wait(Object obj, long timeout, int site) throws InterruptedException {
+        CallSites.call(site, TimeUnit.MILLISECONDS.toNanos(timeout));
+        ClockProxy.Object_wait(obj, timeout);
+    }
+
+    public static void Object_wait(Object obj, long timeout, int nanos, int site) throws InterruptedException {
+        CallSites.call(site, TimeUnit.MILLISECONDS.toNanos(timeout) + nanos);
+        ClockProxy.Object_wait(obj, timeout, nanos);
+    }
+
+    public static void Thread_sleep(long millis, int site) throws InterruptedException {
+        CallSites.call(site, TimeUnit.MILLISECONDS.toNanos(millis));
+        ClockProxy.Thread_sleep(millis);
+    }
+
+    public static void Thread_sleep(long millis, int nanos, int site) throws InterruptedException {
+        CallSites.call(site, TimeUnit.MILLISECONDS.toNanos(millis) + nanos);
+        ClockProxy.Thread_sleep(millis, nanos);
+    }
+
+    public static void Thread_sleep(Duration duration, int site) throws InterruptedException {
+        CallSites.call(site, Util.toNanos(duration));
+        ClockProxy.Thread_sleep(duration);
+    }
+
+    public static void Object_notify(Object obj, int site) {
+        CallSites.call(site);
+        ClockProxy.Object_notify(obj);
+    }
+
+    public static void Object_notifyAll(Object obj, int site) {
+        CallSites.call(site);
+        ClockProxy.Object_notifyAll(obj);
+    }
+
+    public static void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout, int site) {
+        CallSites.park(site, isAbsolute, timeout);
+        ClockProxy.Unsafe_park(unsafe, isAbsolute, timeout);
+    }
+
+    public static void LockSupport_parkNanos(long nanos, int site) {
+        CallSites.call(site, nanos);
+        ClockProxy.LockSupport_parkNanos(nanos);
+    }
+
+    public static void LockSupport_parkNanos(Object blocker, long nanos, int site) {
+        CallSites.call(site, nanos);
+        ClockProxy.LockSupport_parkNanos(blocker, nanos);
+    }
+
+    public static void LockSupport_parkUntil(long deadline, int site) {
+        CallSites.park(site, true, deadline);
+        ClockProxy.LockSupport_parkUntil(deadline);
+    }
+
+    public static void LockSupport_parkUntil(Object blocker, long deadline, int site) {
+        CallSites.park(site, true, deadline);
+        ClockProxy.LockSupport_parkUntil(blocker, deadline);
+    }
+
+    public static int Selector_select(Selector selector, long timeout, int site) throws IOException {
+        CallSites.call(site);
+        return ClockProxy.Selector_select(selector, timeout);
+    }
+
+    public static int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout, int site) throws IOException {
+        CallSites.call(site);
+        return ClockProxy.Selector_select(selector, action, timeout);
+    }
+
+    public static void Socket_setSoTimeout(Socket socket, int timeout, int site) throws SocketException {
+        CallSites.call(site);
+        ClockProxy.Socket_setSoTimeout(socket, timeout);
+    }
+
+    public static void ServerSocket_setSoTimeout(ServerSocket socket, int timeout, int site) throws SocketException {
+        CallSites.call(site);
+        ClockProxy.ServerSocket_setSoTimeout(socket, timeout);
+    }
+
+    public static void DatagramSocket_setSoTimeout(DatagramSocket socket, int timeout, int site) throws SocketException {
+        CallSites.call(site);
+        ClockProxy.DatagramSocket_setSoTimeout(socket, timeout);
+    }
+}
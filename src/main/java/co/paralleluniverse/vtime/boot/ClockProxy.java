@@ -6,47 +6,195 @@
  */
 package co.paralleluniverse.vtime.boot;
 
+import java.io.IOException;
 import java.lang.management.RuntimeMXBean;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.ChildJvm;
+import co.paralleluniverse.vtime.ClockStats;
 import co.paralleluniverse.vtime.VirtualClock;
+import co.paralleluniverse.vtime.clock.Util;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 public final class ClockProxy {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long MAX_ADJUSTMENT_SECONDS = 1L << 32;
+
     private ClockProxy() {
     }
 
     public static long System_currentTimeMillis() {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.SYSTEM_CURRENT_TIME_MILLIS);
+        }
         return VirtualClock.get().System_currentTimeMillis();
     }
 
     public static long System_nanoTime() {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.SYSTEM_NANO_TIME);
+        }
         return VirtualClock.get().System_nanoTime();
     }
 
+    /**
+     * Implements {@code jdk.internal.misc.VM.getNanoTimeAdjustment}: the current time in nanoseconds since the given
+     * epoch second, or {@code -1} if that is too far off for the result to fit, in which case {@code java.time}
+     * retries with an offset taken from {@code System.currentTimeMillis()}.
+     */
+    public static long VM_getNanoTimeAdjustment(long offsetInSeconds) {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.VM_GET_NANO_TIME_ADJUSTMENT);
+        }
+        final long nanos = VirtualClock.get().System_currentTimeNanos();
+        final long seconds = Math.floorDiv(nanos, NANOS_PER_SECOND) - offsetInSeconds;
+        if (seconds >= MAX_ADJUSTMENT_SECONDS || seconds <= -MAX_ADJUSTMENT_SECONDS) {
+            return -1;
+        }
+        return nanos - offsetInSeconds * NANOS_PER_SECOND;
+    }
+
     public static long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.RUNTIME_MXBEAN_GET_START_TIME);
+        }
         return VirtualClock.get().RuntimeMXBean_getStartTime(runtimeMXBean);
     }
 
     public static void Object_wait(Object obj) throws InterruptedException {
+        if (ClockStats.ENABLED) {
+            ClockStats.await(0);
+        }
         VirtualClock.get().Object_wait(obj, 0); // as per specification
     }
 
     public static void Object_wait(Object obj, long timeout) throws InterruptedException {
+        if (ClockStats.ENABLED) {
+            ClockStats.await(TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
         VirtualClock.get().Object_wait(obj, timeout);
     }
 
     public static void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        if (ClockStats.ENABLED) {
+            ClockStats.await(TimeUnit.MILLISECONDS.toNanos(timeout) + nanos);
+        }
         VirtualClock.get().Object_wait(obj, timeout, nanos);
     }
 
     public static void Thread_sleep(long millis) throws InterruptedException {
+        if (ClockStats.ENABLED) {
+            ClockStats.sleep(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
         VirtualClock.get().Thread_sleep(millis);
     }
 
     public static void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        if (ClockStats.ENABLED) {
+            ClockStats.sleep(TimeUnit.MILLISECONDS.toNanos(millis) + nanos);
+        }
         VirtualClock.get().Thread_sleep(millis, nanos);
     }
 
+    public static void Thread_sleep(Duration duration) throws InterruptedException {
+        if (ClockStats.ENABLED) {
+            ClockStats.sleep(Util.toNanos(duration));
+        }
+        VirtualClock.get().Thread_sleep(duration);
+    }
+
+    public static void Object_notify(Object obj) {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.OBJECT_NOTIFY);
+        }
+        VirtualClock.get().Object_notify(obj);
+    }
+
+    public static void Object_notifyAll(Object obj) {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.OBJECT_NOTIFY_ALL);
+        }
+        VirtualClock.get().Object_notifyAll(obj);
+    }
+
     public static void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        if (ClockStats.ENABLED) {
+            ClockStats.park(ClockStats.UNSAFE_PARK, isAbsolute, timeout);
+        }
         VirtualClock.get().Unsafe_park(unsafe, isAbsolute, timeout);
     }
+
+    public static void LockSupport_parkNanos(long nanos) {
+        if (ClockStats.ENABLED) {
+            ClockStats.park(ClockStats.LOCK_SUPPORT_PARK_NANOS, false, nanos);
+        }
+        VirtualClock.get().LockSupport_park(null, false, nanos);
+    }
+
+    public static void LockSupport_parkNanos(Object blocker, long nanos) {
+        if (ClockStats.ENABLED) {
+            ClockStats.park(ClockStats.LOCK_SUPPORT_PARK_NANOS, false, nanos);
+        }
+        VirtualClock.get().LockSupport_park(blocker, false, nanos);
+    }
+
+    public static void LockSupport_parkUntil(long deadline) {
+        if (ClockStats.ENABLED) {
+            ClockStats.park(ClockStats.LOCK_SUPPORT_PARK_UNTIL, true, deadline);
+        }
+        VirtualClock.get().LockSupport_park(null, true, deadline);
+    }
+
+    public static void LockSupport_parkUntil(Object blocker, long deadline) {
+        if (ClockStats.ENABLED) {
+            ClockStats.park(ClockStats.LOCK_SUPPORT_PARK_UNTIL, true, deadline);
+        }
+        VirtualClock.get().LockSupport_park(blocker, true, deadline);
+    }
+
+    public static int Selector_select(Selector selector, long timeout) throws IOException {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.SELECTOR_SELECT);
+        }
+        return VirtualClock.get().Selector_select(selector, timeout);
+    }
+
+    public static int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.SELECTOR_SELECT);
+        }
+        return VirtualClock.get().Selector_select(selector, action, timeout);
+    }
+
+    public static void Socket_setSoTimeout(Socket socket, int timeout) throws SocketException {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.SOCKET_SET_SO_TIMEOUT);
+        }
+        socket.setSoTimeout(VirtualClock.get().Socket_soTimeout(timeout));
+    }
+
+    public static void ServerSocket_setSoTimeout(ServerSocket socket, int timeout) throws SocketException {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.SERVER_SOCKET_SET_SO_TIMEOUT);
+        }
+        socket.setSoTimeout(VirtualClock.get().Socket_soTimeout(timeout));
+    }
+
+    public static void DatagramSocket_setSoTimeout(DatagramSocket socket, int timeout) throws SocketException {
+        if (ClockStats.ENABLED) {
+            ClockStats.call(ClockStats.DATAGRAM_SOCKET_SET_SO_TIMEOUT);
+        }
+        socket.setSoTimeout(VirtualClock.get().Socket_soTimeout(timeout));
+    }
+
+    public static Process ProcessBuilder_start(ProcessBuilder builder) throws IOException {
+        return ChildJvm.start(builder);
+    }
 }
@@ -1,5 +1,5 @@
 /**
- * Contains the class that should be known on the bootclasspath.<br/>
+ * Contains the classes that should be known on the bootclasspath.<br/>
  * In an OSGi platform this package must be added to the boot delegation packages list property, eg:<br/>
  * {@code org.osgi.framework.bootdelegation=co.paralleluniverse.vtime.boot}
  */
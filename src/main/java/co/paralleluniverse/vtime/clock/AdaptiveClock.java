@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
+
+/**
+ * A {@link ScaledClock} whose scale is set, between given bounds, as high as the threads keep up with it.
+ * <p>
+ * Every period, a controller measures how much longer than they should sleeps have taken, and the process's CPU utilization,
+ * and raises the scale while both are below their targets, and lowers it once either is above it,
+ * by up to twice at a time. The scale starts at the lower bound.
+ * <p>
+ * The controller is started by {@link #afterGlobalClockSetup()}, which the agent calls once the clock is installed.
+ *
+ * @author pron
+ */
+public final class AdaptiveClock implements Clock {
+    private static final long DEFAULT_PERIOD_MILLIS = 200;
+    private static final double TARGET_LATENESS = 0.05; // of the time slept
+    private static final double TARGET_CPU = 0.9;
+    private static final double GAIN = 0.5;
+    private static final double MAX_STEP = 2.0;
+
+    /**
+     * Creates an {@code AdaptiveClock} from a configuration of the form {@code min scale#max scale[#period millis]}.
+     */
+    public static Clock create(Clock clock, String conf) {
+        final String[] parts = conf.split("#");
+        double minScale = Double.parseDouble(parts[0]);
+        double maxScale = Double.parseDouble(parts[1]);
+        long periodMillis = parts.length > 2 ? Long.parseLong(parts[2]) : DEFAULT_PERIOD_MILLIS;
+        return new AdaptiveClock(clock, minScale, maxScale, periodMillis);
+    }
+
+    private final Clock source;
+    private final ScaledClock clock;
+    private final double minScale;
+    private final double maxScale;
+    private final long periodMillis;
+    private volatile double achievedScale;
+
+    /**
+     * Constructs an {@code AdaptiveClock} of the given clock, adjusting its scale every 200ms.
+     *
+     * @param source the {@link Clock} to be used as source
+     * @param minScale the lowest scale; must be positive.
+     * @param maxScale the highest scale; must be at least {@code minScale}.
+     */
+    public AdaptiveClock(Clock source, double minScale, double maxScale) {
+        this(source, minScale, maxScale, DEFAULT_PERIOD_MILLIS);
+    }
+
+    /**
+     * Constructs an {@code AdaptiveClock} of the given clock.
+     *
+     * @param source the {@link Clock} to be used as source
+     * @param minScale the lowest scale; must be positive.
+     * @param maxScale the highest scale; must be at least {@code minScale}.
+     * @param periodMillis how often, in the source clock's milliseconds, the scale is adjusted; must be positive.
+     */
+    public AdaptiveClock(Clock source, double minScale, double maxScale, long periodMillis) {
+        if (minScale <= 0.0) {
+            throw new IllegalArgumentException("minScale must be positive; was " + minScale);
+        }
+        if (maxScale < minScale) {
+            throw new IllegalArgumentException("maxScale must be >= minScale (" + minScale + "); was " + maxScale);
+        }
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive; was " + periodMillis);
+        }
+        this.source = source;
+        this.clock = new ScaledClock(source, minScale);
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.periodMillis = periodMillis;
+        this.achievedScale = minScale;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveClock{source=" + source + " scale=" + minScale + ".." + maxScale + '}';
+    }
+
+    /**
+     * @return the scale the clock currently runs at
+     */
+    public double getScale() {
+        return clock.getScale();
+    }
+
+    /**
+     * @return the scale sleeps have actually been kept to over the last period, i.e. the scale less their lateness;
+     *         the current scale if there were none
+     */
+    public double getAchievedScale() {
+        return achievedScale;
+    }
+
+    /**
+     * Moves this clock's time forward by the given duration at once.
+     *
+     * @see ScaledClock#skipAhead(Duration)
+     */
+    public void skipAhead(Duration duration) {
+        clock.skipAhead(duration);
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        return clock.System_currentTimeMillis();
+    }
+
+    @Override
+    public long System_nanoTime() {
+        return clock.System_nanoTime();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        return clock.System_currentTimeNanos();
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        return clock.RuntimeMXBean_getStartTime(runtimeMXBean);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        clock.Object_wait(obj, timeout);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        clock.Object_wait(obj, timeout, nanos);
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        clock.Thread_sleep(millis);
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        clock.Thread_sleep(millis, nanos);
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        clock.Thread_sleep(duration);
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        clock.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        clock.Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        clock.Unsafe_park(unsafe, isAbsolute, timeout);
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        clock.LockSupport_park(blocker, isAbsolute, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return clock.Selector_select(selector, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return clock.Selector_select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return clock.Socket_soTimeout(timeout);
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+        clock.afterGlobalClockSetup();
+        final Thread controller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                control();
+            }
+        }, "AdaptiveClock controller");
+        controller.setDaemon(true);
+        controller.start();
+    }
+
+    private void control() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        final int processors = Runtime.getRuntime().availableProcessors();
+        long time = source.System_nanoTime();
+        long cpu = processCpuTime(os);
+        long requested = clock.requestedSleepNanos();
+        long slept = clock.sleptNanos();
+        for (;;) {
+            try {
+                source.Thread_sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            final long time1 = source.System_nanoTime();
+            final long cpu1 = processCpuTime(os);
+            final long requested1 = clock.requestedSleepNanos();
+            final long slept1 = clock.sleptNanos();
+
+            final double utilization = cpu >= 0 && cpu1 >= 0 ? (double) (cpu1 - cpu) / ((time1 - time) * processors) : 0;
+            update(requested1 - requested, slept1 - slept, utilization);
+
+            time = time1;
+            cpu = cpu1;
+            requested = requested1;
+            slept = slept1;
+        }
+    }
+
+    /**
+     * Sets the scale for the next period.
+     *
+     * @param requested the time, in the source's nanoseconds, sleeps have asked for over the last period
+     * @param slept the time they have taken
+     * @param utilization the share of the processors' time the process has used over the last period
+     */
+    void update(long requested, long slept, double utilization) {
+        final double scale = clock.getScale();
+        final double lateness = slept > 0 ? Math.max((double) (slept - requested) / slept, 0) : 0;
+        achievedScale = scale * (1 - lateness);
+        clock.setScale(adjust(scale, lateness, utilization));
+    }
+
+    /**
+     * @param lateness the share of the time slept over the last period by which sleeps overran what they asked for
+     * @param utilization the share of the processors' time the process has used over the last period
+     * @return the new scale
+     */
+    private double adjust(double scale, double lateness, double utilization) {
+        final double pressure = Math.max(lateness / TARGET_LATENESS, utilization / TARGET_CPU);
+        final double step = pressure > 0 ? Math.min(Math.max(Math.pow(pressure, -GAIN), 1 / MAX_STEP), MAX_STEP) : MAX_STEP;
+        return Math.min(Math.max(scale * step, minScale), maxScale);
+    }
+
+    /**
+     * @return the CPU time the process has used, in nanoseconds, or -1 if the JVM doesn't tell
+     */
+    private static long processCpuTime(OperatingSystemMXBean os) {
+        return os instanceof com.sun.management.OperatingSystemMXBean ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+    }
+}
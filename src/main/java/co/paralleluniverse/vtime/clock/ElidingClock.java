@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.io.IOException;
+import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
+
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
+
+/**
+ * A clock which follows another, but whose sleeps return at once, having moved the time forward by their timeout.
+ * Jobs which spend their time sleeping, such as in retries and backoffs, then run as fast as they compute.
+ * <p>
+ * Timed waits and parks may be ended early by another thread, so they first block for a short grace period,
+ * and only if they aren't woken by its end do they return, having moved the time forward by the rest of their timeout.
+ * Note that the time moves forward the same way when an idle thread, such as a pool worker waiting for a task or to be retired,
+ * times out.
+ * <p>
+ * The time elided by a thread is first only seen by that thread, so the sleeps of different threads don't add up,
+ * but once a thread reads the time, no thread reads an earlier one: the time elided by any thread is at least
+ * the most elided by the time any other read.
+ * <p>
+ * The JDK's own threads, those of the system thread group and the innocuous threads running {@code Cleaner}s, don't elide anything,
+ * lest their periodic timeouts run the clock ahead. Periodic timeouts of other background threads do move it forward, though.
+ *
+ * @author pron
+ */
+public final class ElidingClock implements Clock {
+
+    private static final long DEFAULT_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Creates an {@code ElidingClock} from a configuration of the form {@code [grace micros]}.
+     */
+    public static Clock create(Clock clock, String conf) {
+        return new ElidingClock(clock, conf.isEmpty() ? DEFAULT_GRACE_NANOS : TimeUnit.MICROSECONDS.toNanos(Long.parseLong(conf)));
+    }
+
+    private final Clock source;
+    private final long graceNanos;
+    private final AtomicLong floor = new AtomicLong(); // the most time elided as read by any thread
+    private final ThreadLocal<Elided> elided = new ThreadLocal<Elided>() {
+        @Override
+        protected Elided initialValue() {
+            return new Elided(Util.isSystem(Thread.currentThread()));
+        }
+    };
+
+    /**
+     * Constructs an {@code ElidingClock} of the given clock, whose timed waits and parks block for a grace period of 10ms.
+     *
+     * @param source the {@link Clock} to be used as source
+     */
+    public ElidingClock(Clock source) {
+        this(source, DEFAULT_GRACE_NANOS);
+    }
+
+    /**
+     * Constructs an {@code ElidingClock} of the given clock.
+     *
+     * @param source the {@link Clock} to be used as source
+     * @param graceNanos how long, in nanoseconds of the given clock, timed waits and parks block before their timeout is elided;
+     *                   if 0, they return at once, like sleeps.
+     */
+    public ElidingClock(Clock source, long graceNanos) {
+        if (graceNanos < 0) {
+            throw new IllegalArgumentException("Grace period must not be negative; was " + graceNanos);
+        }
+        this.source = source;
+        this.graceNanos = graceNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ElidingClock{source=" + source + " grace=" + graceNanos + "ns elided=" + floor.get() + '}';
+    }
+
+    /**
+     * @return the time elided as read by any thread, in nanoseconds
+     */
+    public long elidedNanos() {
+        return floor.get();
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        return source.System_currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(elided());
+    }
+
+    @Override
+    public long System_nanoTime() {
+        return source.System_nanoTime() + elided();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        return source.System_currentTimeNanos() + elided();
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        return source.RuntimeMXBean_getStartTime(runtimeMXBean);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        if (timeout <= 0 || isSystem()) {
+            source.Object_wait(obj, timeout);
+        } else {
+            waitNanos(obj, TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        final long waitNanos = timeoutNanos(timeout, nanos);
+        if (waitNanos == 0 || isSystem()) {
+            source.Object_wait(obj, timeout, nanos);
+        } else {
+            waitNanos(obj, waitNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        if (millis <= 0 || isSystem()) {
+            source.Thread_sleep(millis);
+        } else {
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        final long sleepNanos = timeoutNanos(millis, nanos);
+        if (sleepNanos == 0 || isSystem()) {
+            source.Thread_sleep(millis, nanos);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long sleepNanos = Util.toNanos(duration);
+        if (sleepNanos <= 0 || isSystem()) {
+            source.Thread_sleep(duration);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        if ((!isAbsolute && timeout == 0) || isSystem()) {
+            source.Unsafe_park(unsafe, isAbsolute, timeout);
+            return;
+        }
+        final long nanos = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout;
+        if (nanos > 0) {
+            final long start = source.System_nanoTime();
+            final long grace = Math.min(nanos, graceNanos);
+            if (grace > 0) {
+                source.Unsafe_park(unsafe, false, grace);
+            }
+            elideRest(start, grace, nanos);
+        }
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (isSystem()) {
+            source.LockSupport_park(blocker, isAbsolute, timeout);
+            return;
+        }
+        final long nanos = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout;
+        if (nanos > 0) {
+            final long start = source.System_nanoTime();
+            final long grace = Math.min(nanos, graceNanos);
+            if (grace > 0) {
+                source.LockSupport_park(blocker, false, grace);
+            }
+            elideRest(start, grace, nanos);
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return source.Selector_select(selector, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return source.Selector_select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout(timeout);
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+        source.afterGlobalClockSetup();
+    }
+
+    /**
+     * @return the time elided as read by the current thread; at least the most elided as read by any thread so far
+     */
+    private long elided() {
+        final long nanos = elided.get().nanos;
+        long f = floor.get();
+        while (nanos > f) {
+            if (floor.compareAndSet(f, nanos)) {
+                return nanos;
+            }
+            f = floor.get();
+        }
+        return f;
+    }
+
+    /**
+     * @return whether the current thread is one of the JDK's own, which doesn't elide its timeouts
+     */
+    private boolean isSystem() {
+        return elided.get().system;
+    }
+
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        elide(sleepNanos);
+    }
+
+    private void waitNanos(Object obj, long nanos) throws InterruptedException {
+        final long start = source.System_nanoTime();
+        final long grace = Math.min(nanos, graceNanos);
+        if (grace > 0) {
+            source.Object_wait(obj, TimeUnit.NANOSECONDS.toMillis(grace), (int) (grace % 1_000_000));
+        } else if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        elideRest(start, grace, nanos);
+    }
+
+    /**
+     * Elides what's left of a timed wait or park if its grace period is over; if it's over early, the thread has been woken up
+     * (or, rarely, woken spuriously, which is just as well).
+     */
+    private void elideRest(long start, long grace, long nanos) {
+        final long elapsed = source.System_nanoTime() - start;
+        if (elapsed >= grace && elapsed < nanos) {
+            elide(nanos - elapsed);
+        }
+    }
+
+    private void elide(long nanos) {
+        final Elided e = elided.get();
+        e.nanos = Math.max(e.nanos, floor.get()) + nanos;
+        Thread.yield(); // let the threads a retry or polling loop waits for make progress
+    }
+
+    private static final class Elided {
+        final boolean system;
+        long nanos; // only accessed by its thread
+
+        Elided(boolean system) {
+            this.system = system;
+        }
+    }
+}
@@ -3,20 +3,28 @@ package co.paralleluniverse.vtime.clock;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import co.paralleluniverse.vtime.Clock;
 import co.paralleluniverse.vtime.Logger;
 
 import static co.paralleluniverse.vtime.clock.Util.parseDate;
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
 
 /**
  * Clock instance that is shifted from another clock.
+ * The shift can be increased at any time with {@link #skipAhead(Duration) skipAhead}.
  *
  * @author jleskovar
  */
 public final class OffsetClock implements Clock {
     private static final long DEFAULT_WRITER_DELAY = 60 * 1000; // 1 minute
+    private static final int NANO_MILLIS = 1000 * 1000;
 
     public static Clock create(Clock clock, String conf) {
         long offset;
@@ -54,6 +62,7 @@ public final class OffsetClock implements Clock {
     private final Clock source;
     private final long offset;
     private final State state;
+    private final SkipAhead skip = new SkipAhead();
 
     /**
      * Constructs a {@code OffsetClock} from the specified {@code Clock}.
@@ -74,15 +83,37 @@ public final class OffsetClock implements Clock {
         return "OffsetClock{source=" + source + " offset=" + offset + '}';
     }
 
+    /**
+     * Moves this clock's time forward by the given duration at once, and wakes up the threads whose timed sleep, wait or park
+     * has thereby reached its deadline. Unlike the initial offset, the skip applies to {@code System.nanoTime()} as well.
+     * <p>
+     * Until the first skip, waits go straight to the source clock, so that a clock that never skips pays nothing for it;
+     * the waits that began before the first skip therefore aren't cut short by it.
+     *
+     * @param duration the time duration; must be positive
+     */
+    public void skipAhead(Duration duration) {
+        final long nanos = Util.toNanos(duration);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("Duration must be positive; was " + duration);
+        }
+        skip.skip(nanos, source.System_nanoTime());
+    }
+
     @Override
     public long System_currentTimeMillis() {
-        return source.System_currentTimeMillis() + offset;
+        return source.System_currentTimeMillis() + offset + TimeUnit.NANOSECONDS.toMillis(skip.nanos());
     }
 
     @Override
     public long System_nanoTime() {
-        // since this can be used only for measuring delta, no need to offset this method
-        return source.System_nanoTime();
+        // since this can be used only for measuring delta, no need to offset this method, but time skipped ahead has passed
+        return source.System_nanoTime() + skip.nanos();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        return source.System_currentTimeNanos() + TimeUnit.MILLISECONDS.toNanos(offset) + skip.nanos();
     }
 
     @Override
@@ -92,27 +123,125 @@ public final class OffsetClock implements Clock {
 
     @Override
     public void Object_wait(Object obj, long timeout) throws InterruptedException {
-        source.Object_wait(obj, timeout);
+        if (timeout <= 0 || !skipped()) {
+            source.Object_wait(obj, timeout);
+        } else {
+            waitNanos(obj, TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
     }
 
     @Override
     public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
-        source.Object_wait(obj, timeout, nanos);
+        if (!skipped()) {
+            source.Object_wait(obj, timeout, nanos);
+            return;
+        }
+        final long timeoutNanos = timeoutNanos(timeout, nanos);
+        if (timeoutNanos == 0) {
+            source.Object_wait(obj, 0);
+        } else {
+            waitNanos(obj, timeoutNanos);
+        }
     }
 
     @Override
     public void Thread_sleep(long millis) throws InterruptedException {
-        source.Thread_sleep(millis);
+        if (millis <= 0 || !skipped()) {
+            source.Thread_sleep(millis);
+        } else {
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
     }
 
     @Override
     public void Thread_sleep(long millis, int nanos) throws InterruptedException {
-        source.Thread_sleep(millis, nanos);
+        if (!skipped()) {
+            source.Thread_sleep(millis, nanos);
+            return;
+        }
+        final long sleepNanos = timeoutNanos(millis, nanos);
+        if (sleepNanos == 0) {
+            source.Thread_sleep(0);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long sleepNanos = Util.toNanos(duration);
+        if (sleepNanos <= 0 || !skipped()) {
+            source.Thread_sleep(duration);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
     }
 
     @Override
     public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
-        source.Unsafe_park(unsafe, isAbsolute, timeout);
+        if (!skipped()) {
+            // an absolute deadline was computed from the offset time
+            source.Unsafe_park(unsafe, isAbsolute, isAbsolute ? timeout - offset : timeout);
+            return;
+        }
+        if (timeout <= 0) {
+            unsafe.park(isAbsolute, timeout);
+            return;
+        }
+        final SkipAhead.Waiter w = skip.arm(source.System_nanoTime(), parkTimeout(isAbsolute, timeout), false);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                source.Unsafe_park(unsafe, isAbsolute, isAbsolute ? sourceDeadline(timeout) : remaining);
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (!skipped()) {
+            source.LockSupport_park(blocker, isAbsolute, isAbsolute ? timeout - offset : timeout);
+            return;
+        }
+        if (!isAbsolute && timeout <= 0) {
+            return;
+        }
+        final SkipAhead.Waiter w = skip.arm(source.System_nanoTime(), parkTimeout(isAbsolute, timeout), false);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                source.LockSupport_park(blocker, isAbsolute, isAbsolute ? sourceDeadline(timeout) : remaining);
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return source.Selector_select(selector, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return source.Selector_select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout(timeout);
     }
 
     @Override
@@ -129,6 +258,63 @@ public final class OffsetClock implements Clock {
         }
     }
 
+    /**
+     * @return whether the clock has skipped ahead, after which waits must be registered to be woken by a skip
+     */
+    private boolean skipped() {
+        return skip.nanos() != 0;
+    }
+
+    /**
+     * @return the timeout of a park, in nanoseconds; an absolute one is converted from epoch millis
+     */
+    private long parkTimeout(boolean isAbsolute, long timeout) {
+        return isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout;
+    }
+
+    /**
+     * Converts an absolute deadline, in epoch millis, to the source's time. Must be called once the wait is armed,
+     * so that it can't miss a skip.
+     */
+    private long sourceDeadline(long deadline) {
+        return deadline - offset - TimeUnit.NANOSECONDS.toMillis(skip.nanos());
+    }
+
+    private void waitNanos(Object obj, long timeoutNanos) throws InterruptedException {
+        // a skip wakes the thread with an interrupt, as obj's monitor can't be taken by the skipping thread
+        final SkipAhead.Waiter w = skip.arm(source.System_nanoTime(), timeoutNanos, true);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                source.Object_wait(obj, remaining / NANO_MILLIS, (int) (remaining % NANO_MILLIS));
+            } else if (!Thread.holdsLock(obj)) {
+                throw new IllegalMonitorStateException();
+            }
+        } catch (InterruptedException e) {
+            if (w.disarm()) {
+                throw e;
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        final SkipAhead.Waiter w = skip.arm(source.System_nanoTime(), sleepNanos, true);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                source.Thread_sleep(remaining / NANO_MILLIS, (int) (remaining % NANO_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            if (w.disarm()) {
+                throw e;
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
     private static class State {
         private final File file;
         private final long writerDelay;
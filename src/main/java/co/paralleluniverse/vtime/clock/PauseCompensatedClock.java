@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.Logger;
+
+/**
+ * A clock which follows another, less the time the JVM has spent paused in garbage collections or, optionally, in any safepoint,
+ * so that a clock scaling it, such as a {@link ScaledClock}, doesn't turn a pause into a long stretch of its time
+ * in which nothing happened; e.g. {@code compensated,scaled=100}.
+ * <p>
+ * Pauses are learned of only after they're over, from the garbage collectors' notifications, or from JFR's safepoint events
+ * (Java 14+), which take up to a second or so. So as not to go back, the clock then stands still for as long as the pause,
+ * and only then carries on from the source's time less the pause.
+ * Sleeps go on until this clock has reached their deadline, which may be the pause's length past the source's;
+ * timed waits and parks, which may return early anyway, don't.
+ * <p>
+ * Pauses are subscribed to by {@link #afterGlobalClockSetup()}, which the agent calls once the clock is installed.
+ *
+ * @author pron
+ */
+public final class PauseCompensatedClock implements Clock {
+    private static final long PAUSE_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int NANO_MILLIS = 1000 * 1000;
+
+    /**
+     * Creates a {@code PauseCompensatedClock} from a configuration of the form {@code [safepoints]}.
+     */
+    public static Clock create(Clock clock, String conf) {
+        switch (conf) {
+            case "":
+                return new PauseCompensatedClock(clock, false);
+            case "safepoints":
+                return new PauseCompensatedClock(clock, true);
+            default:
+                throw new IllegalArgumentException("Unknown pauses: " + conf);
+        }
+    }
+
+    private final Clock source;
+    private final boolean safepoints;
+    private volatile Paused paused = new Paused(0, Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE);
+
+    /**
+     * Constructs a {@code PauseCompensatedClock} of the given clock.
+     *
+     * @param source the {@link Clock} to be used as source
+     * @param safepoints whether to compensate for all safepoints, as reported by JFR, rather than only for garbage collections
+     */
+    public PauseCompensatedClock(Clock source, boolean safepoints) {
+        this.source = source;
+        this.safepoints = safepoints;
+    }
+
+    @Override
+    public String toString() {
+        return "PauseCompensatedClock{source=" + source + (safepoints ? " safepoints" : "") + " paused=" + paused.nanos + "ns}";
+    }
+
+    /**
+     * @return the total time, in nanoseconds, taken off the source's time so far
+     */
+    public long getPausedNanos() {
+        return paused.nanos;
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        for (;;) {
+            final Paused p = paused;
+            final long millis = p.millis(source.System_currentTimeMillis());
+            if (paused == p) { // otherwise the source's time may be past the pause's
+                return millis;
+            }
+        }
+    }
+
+    @Override
+    public long System_nanoTime() {
+        for (;;) {
+            final Paused p = paused;
+            final long nanos = p.nanos(source.System_nanoTime());
+            if (paused == p) {
+                return nanos;
+            }
+        }
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        for (;;) {
+            final Paused p = paused;
+            final long nanos = p.timeNanos(source.System_currentTimeNanos());
+            if (paused == p) {
+                return nanos;
+            }
+        }
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        return source.RuntimeMXBean_getStartTime(runtimeMXBean);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        source.Object_wait(obj, timeout);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        source.Object_wait(obj, timeout, nanos);
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        if (millis <= 0) {
+            source.Thread_sleep(millis);
+        } else {
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        final long sleepNanos = Util.timeoutNanos(millis, nanos);
+        if (sleepNanos == 0) {
+            source.Thread_sleep(0);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long sleepNanos = Util.toNanos(duration);
+        if (sleepNanos <= 0) {
+            source.Thread_sleep(duration);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        source.Unsafe_park(unsafe, isAbsolute, isAbsolute ? sourceDeadline(timeout) : timeout);
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        source.LockSupport_park(blocker, isAbsolute, isAbsolute ? sourceDeadline(timeout) : timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return source.Selector_select(selector, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return source.Selector_select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout(timeout);
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+        source.afterGlobalClockSetup();
+        if (safepoints && Safepoints.subscribe(this)) {
+            return;
+        }
+        subscribeGarbageCollections();
+    }
+
+    /**
+     * Converts an absolute deadline, in epoch millis, to the source's time.
+     */
+    private long sourceDeadline(long deadline) {
+        return deadline + (source.System_currentTimeMillis() - System_currentTimeMillis());
+    }
+
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        final long deadline = System_nanoTime() + sleepNanos;
+        for (long remaining = sleepNanos; remaining > 0; remaining = deadline - System_nanoTime()) {
+            source.Thread_sleep(remaining / NANO_MILLIS, (int) (remaining % NANO_MILLIS));
+        }
+    }
+
+    /**
+     * Takes a pause that has just been reported off the clock's time.
+     */
+    synchronized void pause(long pauseNanos) {
+        if (pauseNanos <= 0) {
+            return;
+        }
+        final Paused p = paused;
+        // the clock stands still from where it would be a little later, so that the time read by threads
+        // yet to see the pause doesn't run past it
+        Paused next;
+        long sourceNanos;
+        do {
+            sourceNanos = source.System_nanoTime() + PAUSE_DELAY_NANOS;
+            next = new Paused(p.nanos + pauseNanos,
+                    p.millis(source.System_currentTimeMillis()), p.nanos(sourceNanos), p.timeNanos(source.System_currentTimeNanos()));
+        } while (source.System_nanoTime() - sourceNanos >= 0); // held up for too long
+        this.paused = next;
+    }
+
+    private void subscribeGarbageCollections() {
+        final NotificationListener listener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    pause(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+                }
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // the concurrent collectors' collections, unlike their pauses, mostly run alongside the application
+            if (gc instanceof NotificationEmitter && !gc.getName().contains("Concurrent") && !gc.getName().contains("Cycles")) {
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    /**
+     * The time paused so far, and the time the clock stands still at until it's made up for.
+     */
+    private static final class Paused {
+        final long nanos;
+        final long floorMillis;
+        final long floorNanos;
+        final long floorTimeNanos;
+
+        Paused(long nanos, long floorMillis, long floorNanos, long floorTimeNanos) {
+            this.nanos = nanos;
+            this.floorMillis = floorMillis;
+            this.floorNanos = floorNanos;
+            this.floorTimeNanos = floorTimeNanos;
+        }
+
+        long millis(long sourceMillis) {
+            return Math.max(sourceMillis - TimeUnit.NANOSECONDS.toMillis(nanos), floorMillis);
+        }
+
+        long nanos(long sourceNanos) {
+            return Math.max(sourceNanos - nanos, floorNanos);
+        }
+
+        long timeNanos(long sourceTimeNanos) {
+            return Math.max(sourceTimeNanos - nanos, floorTimeNanos);
+        }
+    }
+
+    /**
+     * Subscribes to JFR's safepoint events with a {@code RecordingStream}, which is only there on Java 14+.
+     */
+    private static final class Safepoints {
+        private static final String BEGIN = "jdk.SafepointBegin";
+        private static final String END = "jdk.SafepointEnd";
+
+        /**
+         * @return {@code false} if JFR event streaming isn't there
+         */
+        static boolean subscribe(final PauseCompensatedClock clock) {
+            try {
+                final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                final Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+                final Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+                final Class<?> eventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+                final MethodHandle enable = lookup.findVirtual(streamClass, "enable", MethodType.methodType(settingsClass, String.class));
+                final MethodHandle withThreshold = lookup.findVirtual(settingsClass, "withThreshold", MethodType.methodType(settingsClass, Duration.class));
+                final MethodHandle onEvent = lookup.findVirtual(streamClass, "onEvent", MethodType.methodType(void.class, String.class, Consumer.class));
+                final MethodHandle start = lookup.findVirtual(streamClass, "start", MethodType.methodType(void.class));
+                final MethodHandle getLong = lookup.findVirtual(eventClass, "getLong", MethodType.methodType(long.class, String.class));
+                final MethodHandle getStartTime = lookup.findVirtual(eventClass, "getStartTime", MethodType.methodType(Instant.class));
+                final MethodHandle getEndTime = lookup.findVirtual(eventClass, "getEndTime", MethodType.methodType(Instant.class));
+
+                final Object stream = lookup.findConstructor(streamClass, MethodType.methodType(void.class)).invoke();
+                withThreshold.invoke(enable.invoke(stream, BEGIN), Duration.ZERO);
+                withThreshold.invoke(enable.invoke(stream, END), Duration.ZERO);
+                // a safepoint's begin and end events come in the same flush, though not necessarily in order;
+                // they're all handled by the stream's thread
+                final Map<Long, Instant> begun = new HashMap<>();
+                final Map<Long, Instant> ended = new HashMap<>();
+                onEvent.invoke(stream, BEGIN, new Consumer<Object>() {
+                    @Override
+                    public void accept(Object event) {
+                        try {
+                            final long id = (long) getLong.invoke(event, "safepointId");
+                            final Instant begin = (Instant) getStartTime.invoke(event);
+                            final Instant end = ended.remove(id);
+                            if (end != null) {
+                                clock.pause(Util.toNanos(Duration.between(begin, end)));
+                            } else {
+                                begun.put(id, begin);
+                            }
+                        } catch (Throwable t) {
+                            throw new AssertionError(t);
+                        }
+                    }
+                });
+                onEvent.invoke(stream, END, new Consumer<Object>() {
+                    @Override
+                    public void accept(Object event) {
+                        try {
+                            final long id = (long) getLong.invoke(event, "safepointId");
+                            final Instant end = (Instant) getEndTime.invoke(event);
+                            final Instant begin = begun.remove(id);
+                            if (begin != null) {
+                                clock.pause(Util.toNanos(Duration.between(begin, end)));
+                            } else {
+                                ended.put(id, end);
+                            }
+                        } catch (Throwable t) {
+                            throw new AssertionError(t);
+                        }
+                    }
+                });
+                // startAsync would run the stream in a thread that, like the agent's, isn't a daemon, and would keep the JVM up
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.invoke(stream);
+                        } catch (Throwable t) {
+                            Logger.warning("Safepoint events stream failed:", t);
+                        }
+                    }
+                }, "PauseCompensatedClock safepoints");
+                thread.setDaemon(true);
+                thread.start();
+                return true;
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+                Logger.warning("Safepoint pauses require JFR event streaming (Java 14+); compensating for garbage collections only");
+                return false;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new AssertionError(t);
+            }
+        }
+    }
+}
@@ -6,28 +6,66 @@
  */
 package co.paralleluniverse.vtime.clock;
 
+import java.io.IOException;
 import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import co.paralleluniverse.vtime.Clock;
 
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
+
 /**
  * A clock providing scaled time (slowed down or sped up) relative to another clock.
+ * <p>
+ * When sped up a lot, sleeps become too short for the OS to time accurately: it wakes threads up tens of microseconds late,
+ * which would slow the clock's threads down far below the scale. Sleeps are therefore timed by this clock:
+ * each thread keeps track of how much it overslept, and takes it off its following sleeps, skipping them altogether
+ * while they are shorter, so that its sleeps add up to the time they asked for;
+ * and the last stretch of a sleep, up to a given length, is spun rather than slept, by a limited number of threads at a time.
+ * <p>
+ * The clock's time can also be moved forward at once with {@link #skipAhead(Duration) skipAhead}, and its scale changed
+ * with {@link #setScale(double) setScale}.
  *
  * @author pron
  */
 public final class ScaledClock implements Clock {
+    private static final long DEFAULT_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long MAX_DEBT_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // so that a stall, such as a GC pause, isn't made up for by later sleeps
+    private static final long RATE_CHANGE_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
 
+    /**
+     * Creates a {@code ScaledClock} from a configuration of the form {@code scale[#spin micros[#max spinning threads]]}.
+     */
     public static Clock create(Clock clock, String conf) {
-        double scale = Double.parseDouble(conf);
-        return new ScaledClock(clock, scale);
+        final String[] parts = conf.split("#");
+        double scale = Double.parseDouble(parts[0]);
+        long spinNanos = parts.length > 1 ? TimeUnit.MICROSECONDS.toNanos(Long.parseLong(parts[1])) : DEFAULT_SPIN_NANOS;
+        int maxSpinners = parts.length > 2 ? Integer.parseInt(parts[2]) : defaultMaxSpinners();
+        return new ScaledClock(clock, scale, spinNanos, maxSpinners);
     }
 
     private final int NANO_MILLIS = 1000 * 1000;
 
     private final Clock source;
-    private final double scale;
-
-    private final long startTime;
-    private final long startNanos;
+    private final Rate initialRate;
+    private volatile Rate rate;
+    private final long spinNanos;
+    private final int maxSpinners;
+    private final AtomicInteger spinners = new AtomicInteger();
+    private final LongAdder requestedSleepNanos = new LongAdder();
+    private final LongAdder sleptNanos = new LongAdder();
+    private final SkipAhead skip = new SkipAhead();
+    private final ThreadLocal<Sleeper> sleeper = new ThreadLocal<Sleeper>() {
+        @Override
+        protected Sleeper initialValue() {
+            return new Sleeper();
+        }
+    };
 
     /**
      * Constructs a {@code ScaledClock} of the a given clock.
@@ -38,56 +76,180 @@ public final class ScaledClock implements Clock {
      * @param scale the scale by which the given clock's time is scaled; must be positive.
      */
     public ScaledClock(Clock source, double scale) {
+        this(source, scale, DEFAULT_SPIN_NANOS, defaultMaxSpinners());
+    }
+
+    /**
+     * Constructs a {@code ScaledClock} of the a given clock, which spins through the end of sleeps.
+     *
+     * @param source the {@link Clock} to be used as source
+     * @param scale the scale by which the given clock's time is scaled; must be positive.
+     * @param spinNanos the longest stretch, in the source clock's nanoseconds, at the end of a sleep which is spun rather than slept;
+     *                  0 to never spin
+     * @param maxSpinners the maximum number of threads spinning at any time; those beyond it sleep
+     */
+    public ScaledClock(Clock source, double scale, long spinNanos, int maxSpinners) {
         if (scale <= 0.0) {
             throw new IllegalArgumentException("Scale must be positive; was " + scale);
         }
+        if (spinNanos < 0) {
+            throw new IllegalArgumentException("spinNanos must be >= 0; was " + spinNanos);
+        }
+        if (maxSpinners < 0) {
+            throw new IllegalArgumentException("maxSpinners must be >= 0; was " + maxSpinners);
+        }
         this.source = source;
-        this.scale = scale;
+        this.spinNanos = spinNanos;
+        this.maxSpinners = maxSpinners;
 
-        this.startTime = source.System_currentTimeMillis();
-        this.startNanos = source.System_nanoTime();
+        final long startTime = source.System_currentTimeMillis();
+        final long startNanos = source.System_nanoTime();
+        final long startTimeNanos = TimeUnit.MILLISECONDS.toNanos(startTime);
+        this.initialRate = new Rate(scale, startTime, startTime, startNanos, startNanos, startTimeNanos, startTimeNanos);
+        this.rate = initialRate;
     }
 
     @Override
     public String toString() {
-        return "ScaledClock{source=" + source + " scale=" + scale + '}';
+        return "ScaledClock{source=" + source + " scale=" + rate.scale + '}';
+    }
+
+    /**
+     * @return the scale by which the source clock's time is currently scaled
+     */
+    public double getScale() {
+        return rate.scale;
+    }
+
+    /**
+     * Changes the scale by which the source clock's time is scaled from now on. The clock's time carries on from where it is,
+     * only at the new rate; sleeps, waits and parks already under way still take the time they would have at the old one.
+     *
+     * @param scale the new scale; must be positive.
+     */
+    public synchronized void setScale(double scale) {
+        if (scale <= 0.0) {
+            throw new IllegalArgumentException("Scale must be positive; was " + scale);
+        }
+        final Rate r = rate;
+        // on nanoTime, which must not go back, a slower rate takes effect a little later, so that the time read by threads
+        // yet to see it, at the current rate, doesn't run past it; the time of day, like the system's, may go back a little
+        final long delay = scale < r.scale ? RATE_CHANGE_DELAY_NANOS : 0;
+        Rate next;
+        do {
+            final long sourceMillis = source.System_currentTimeMillis();
+            final long sourceNanos = source.System_nanoTime() + delay;
+            final long sourceTimeNanos = source.System_currentTimeNanos();
+            next = new Rate(scale,
+                    sourceMillis, r.millis(sourceMillis),
+                    sourceNanos, r.nanos(sourceNanos),
+                    sourceTimeNanos, r.timeNanos(sourceTimeNanos));
+        } while (delay > 0 && source.System_nanoTime() - next.sourceNanos >= 0); // held up for too long
+        this.rate = next;
+    }
+
+    /**
+     * Moves this clock's time forward by the given duration at once, and wakes up the threads whose timed sleep, wait or park
+     * has thereby reached its deadline.
+     *
+     * @param duration the time duration; must be positive
+     */
+    public void skipAhead(Duration duration) {
+        final long nanos = Util.toNanos(duration);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("Duration must be positive; was " + duration);
+        }
+        skip.skip(nanos, scaledNanoTime());
     }
 
     @Override
     public long System_currentTimeMillis() {
-        return startTime + (long) ((source.System_currentTimeMillis() - startTime) * scale);
+        for (;;) {
+            final Rate r = rate;
+            final long millis = r.millis(source.System_currentTimeMillis());
+            if (rate == r) { // otherwise the source's time may be past the new rate's start
+                return millis + TimeUnit.NANOSECONDS.toMillis(skip.nanos());
+            }
+        }
     }
 
     @Override
     public long System_nanoTime() {
-        return startNanos + (long) ((source.System_nanoTime() - startNanos) * scale); // we use startNanos just to keep the scaled number smaller
+        return scaledNanoTime() + skip.nanos();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        for (;;) {
+            final Rate r = rate;
+            final long nanos = r.timeNanos(source.System_currentTimeNanos());
+            if (rate == r) {
+                return nanos + skip.nanos();
+            }
+        }
     }
 
     @Override
     public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
-        return startTime + (long) ((source.RuntimeMXBean_getStartTime(runtimeMXBean) - startTime) * scale);
+        return initialRate.millis(source.RuntimeMXBean_getStartTime(runtimeMXBean));
     }
 
     @Override
     public void Object_wait(Object obj, long timeout) throws InterruptedException {
-        source.Object_wait(obj, (long) (timeout / scale));
+        if (timeout <= 0) {
+            Util.wait(source, obj, timeout, 0);
+        } else {
+            waitNanos(obj, TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
     }
 
     @Override
     public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
-        long totalNanos = (long) ((timeout * NANO_MILLIS + nanos) / scale);
-        source.Object_wait(obj, totalNanos / NANO_MILLIS, (int) (totalNanos % NANO_MILLIS));
+        final long timeoutNanos = timeoutNanos(timeout, nanos);
+        if (timeoutNanos == 0) {
+            Util.wait(source, obj, 0, 0);
+        } else {
+            waitNanos(obj, timeoutNanos);
+        }
     }
 
     @Override
     public void Thread_sleep(long millis) throws InterruptedException {
-        source.Thread_sleep((long) (millis / scale));
+        if (millis <= 0) {
+            source.Thread_sleep(millis);
+        } else {
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
     }
 
     @Override
     public void Thread_sleep(long millis, int nanos) throws InterruptedException {
-        long totalNanos = (long) ((millis * NANO_MILLIS + nanos) / scale);
-        source.Thread_sleep(totalNanos / NANO_MILLIS, (int) (totalNanos % NANO_MILLIS));
+        final long sleepNanos = timeoutNanos(millis, nanos);
+        if (sleepNanos == 0) {
+            source.Thread_sleep(0);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long sleepNanos = Util.toNanos(duration);
+        if (sleepNanos <= 0) {
+            source.Thread_sleep(duration);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
     }
 
     @Override
@@ -96,15 +258,234 @@ public final class ScaledClock implements Clock {
             unsafe.park(isAbsolute, timeout);
             return;
         }
-        if (!isAbsolute) {
-            source.Unsafe_park(unsafe, isAbsolute, (long) (timeout / scale));
-        } else {
-            source.Unsafe_park(unsafe, isAbsolute, source.System_currentTimeMillis() + (long) ((timeout - System_currentTimeMillis()) / scale));
+        final SkipAhead.Waiter w = skip.arm(scaledNanoTime(), parkTimeout(isAbsolute, timeout), false);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                source.Unsafe_park(unsafe, false, scaleNanos(remaining));
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (!isAbsolute && timeout <= 0) {
+            return;
         }
+        final SkipAhead.Waiter w = skip.arm(scaledNanoTime(), parkTimeout(isAbsolute, timeout), false);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                source.LockSupport_park(blocker, false, scaleNanos(remaining));
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return source.Selector_select(selector, scaleTimeout(timeout));
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return source.Selector_select(selector, action, scaleTimeout(timeout));
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout((int) Math.min(scaleTimeout(timeout), Integer.MAX_VALUE));
     }
 
     @Override
     public void afterGlobalClockSetup() {
         source.afterGlobalClockSetup();
     }
+
+    private long scaledNanoTime() {
+        for (;;) {
+            final Rate r = rate;
+            final long nanos = r.nanos(source.System_nanoTime());
+            if (rate == r) {
+                return nanos;
+            }
+        }
+    }
+
+    /**
+     * @return the total time, in the source's nanoseconds, sleeps have asked for (after scaling) so far
+     */
+    long requestedSleepNanos() {
+        return requestedSleepNanos.sum();
+    }
+
+    /**
+     * @return the total time, in the source's nanoseconds, sleeps have taken so far; the more it exceeds
+     *         {@link #requestedSleepNanos()}, the later they wake up than they should, at the current scale
+     */
+    long sleptNanos() {
+        return sleptNanos.sum();
+    }
+
+    /**
+     * @return the timeout of a park, in nanoseconds; an absolute one is converted from epoch millis
+     */
+    private long parkTimeout(boolean isAbsolute, long timeout) {
+        return isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout;
+    }
+
+    /**
+     * Converts a positive duration of this clock to the source's, without rounding it down to 0, which often means forever.
+     */
+    private long scaleNanos(long nanos) {
+        return Math.max((long) (nanos / rate.scale), 1);
+    }
+
+    private void waitNanos(Object obj, long timeoutNanos) throws InterruptedException {
+        // a skip wakes the thread with an interrupt, as obj's monitor can't be taken by the skipping thread
+        final SkipAhead.Waiter w = skip.arm(scaledNanoTime(), timeoutNanos, true);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                final long nanos = scaleNanos(remaining);
+                Util.wait(source, obj, nanos / NANO_MILLIS, (int) (nanos % NANO_MILLIS));
+            } else if (!Thread.holdsLock(obj)) {
+                throw new IllegalMonitorStateException();
+            }
+        } catch (InterruptedException e) {
+            if (w.disarm()) {
+                throw e;
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        final SkipAhead.Waiter w = skip.arm(scaledNanoTime(), sleepNanos, true);
+        try {
+            final long remaining = w.remaining();
+            if (remaining > 0) {
+                sleepScaled(remaining);
+            }
+        } catch (InterruptedException e) {
+            if (w.disarm()) {
+                throw e;
+            }
+        } finally {
+            w.disarm();
+        }
+    }
+
+    private void sleepScaled(long sleepNanos) throws InterruptedException {
+        final Sleeper s = sleeper.get();
+        final long requested = (long) (sleepNanos / rate.scale);
+        final long due = requested - s.debt;
+        requestedSleepNanos.add(requested);
+        if (due <= 0) {
+            s.debt = -due;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return;
+        }
+        final long start = source.System_nanoTime();
+        final long deadline = start + due;
+        try {
+            if (due > spinNanos) {
+                final long sleep = due - spinNanos;
+                Util.sleep(source, sleep / NANO_MILLIS, (int) (sleep % NANO_MILLIS));
+            }
+            final long remaining = deadline - source.System_nanoTime();
+            if (remaining > 0 && !spinUntil(deadline)) {
+                Util.sleep(source, remaining / NANO_MILLIS, (int) (remaining % NANO_MILLIS));
+            }
+        } finally {
+            final long now = source.System_nanoTime();
+            s.debt = Math.min(Math.max(now - deadline, 0), MAX_DEBT_NANOS);
+            sleptNanos.add(now - start);
+        }
+    }
+
+    /**
+     * @return {@code false} if the thread may not spin, as too many others are spinning, or it is virtual and would hold up its carrier
+     */
+    private boolean spinUntil(long deadline) throws InterruptedException {
+        if (spinNanos == 0 || VirtualThreadTimer.isVirtual(Thread.currentThread())) {
+            return false;
+        }
+        for (;;) {
+            final int n = spinners.get();
+            if (n >= maxSpinners) {
+                return false;
+            }
+            if (spinners.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        try {
+            while (deadline - source.System_nanoTime() > 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Util.onSpinWait();
+            }
+            return true;
+        } finally {
+            spinners.decrementAndGet();
+        }
+    }
+
+    private static int defaultMaxSpinners() {
+        return Runtime.getRuntime().availableProcessors() / 2; // a single processor is better left to the threads being waited for
+    }
+
+    /**
+     * Scales a timeout in milliseconds for which 0 means none, without rounding a positive timeout down to none.
+     */
+    private long scaleTimeout(long timeout) {
+        return timeout > 0 ? Math.max((long) (timeout / rate.scale), 1) : timeout;
+    }
+
+    /**
+     * The scale since a point in the source's time, given in each of its time bases, and the clock's time at that point.
+     */
+    private static final class Rate {
+        final double scale;
+        final long sourceMillis;
+        final long millis;
+        final long sourceNanos;
+        final long nanos;
+        final long sourceTimeNanos;
+        final long timeNanos;
+
+        Rate(double scale, long sourceMillis, long millis, long sourceNanos, long nanos, long sourceTimeNanos, long timeNanos) {
+            this.scale = scale;
+            this.sourceMillis = sourceMillis;
+            this.millis = millis;
+            this.sourceNanos = sourceNanos;
+            this.nanos = nanos;
+            this.sourceTimeNanos = sourceTimeNanos;
+            this.timeNanos = timeNanos;
+        }
+
+        long millis(long sourceMillis) {
+            return millis + (long) ((sourceMillis - this.sourceMillis) * scale);
+        }
+
+        long nanos(long sourceNanos) {
+            return nanos + (long) ((sourceNanos - this.sourceNanos) * scale);
+        }
+
+        long timeNanos(long sourceTimeNanos) {
+            return timeNanos + (long) ((sourceTimeNanos - this.sourceTimeNanos) * scale);
+        }
+    }
+
+    private static final class Sleeper {
+        long debt; // the source clock's nanoseconds the thread overslept by, yet to be taken off its next sleeps
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The time by which a clock that follows another has skipped ahead of it, and the threads in its timed sleeps, waits and parks,
+ * which a skip wakes up once it takes the clock's time past their deadline.
+ * <p>
+ * Skips are rare, so rather than keeping the deadlines sorted, which would cost every timed wait a lock,
+ * each thread has a single entry, registered on its first timed wait and dropped once the thread is gone,
+ * and a skip goes over all of them.
+ *
+ * @author pron
+ */
+final class SkipAhead {
+    private volatile long nanos;
+    private final Set<Waiter> waiters = Collections.newSetFromMap(new WeakHashMap<Waiter, Boolean>()); // guarded by itself
+    private final ThreadLocal<Waiter> waiter = new ThreadLocal<Waiter>() {
+        @Override
+        protected Waiter initialValue() {
+            final Waiter w = new Waiter(SkipAhead.this, Thread.currentThread());
+            synchronized (waiters) {
+                waiters.add(w);
+            }
+            return w;
+        }
+    };
+
+    /**
+     * @return the time skipped so far, in nanoseconds
+     */
+    long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Skips ahead, and wakes up the threads whose deadline has passed.
+     *
+     * @param duration the time to skip, in nanoseconds
+     * @param now the clock's time, not counting skips
+     */
+    synchronized void skip(long duration, long now) {
+        this.nanos += duration;
+        final long time = now + nanos;
+        final Waiter[] ws;
+        synchronized (waiters) {
+            ws = waiters.toArray(new Waiter[0]);
+        }
+        for (Waiter w : ws) {
+            w.wakeup(time);
+        }
+    }
+
+    /**
+     * Registers a timed wait of the current thread. The wait must go on for {@link Waiter#remaining() remaining()} at most,
+     * which accounts for skips that may have been missed while registering, and be ended by {@link Waiter#disarm() disarm()}.
+     *
+     * @param now the clock's time, not counting skips
+     * @param timeout the wait's timeout, in nanoseconds
+     * @param interrupt whether the thread is woken by an interrupt (for a sleep or {@code Object.wait}) rather than by {@code unpark}
+     */
+    Waiter arm(long now, long timeout, boolean interrupt) {
+        final Waiter w = waiter.get();
+        final long skipped = nanos;
+        w.arm(now + skipped + timeout, timeout, skipped, interrupt);
+        return w;
+    }
+
+    /**
+     * A thread's timed wait. Each thread owns a single {@code Waiter}, which is re-armed for every wait.
+     */
+    static final class Waiter {
+        private static final int IDLE = 0;
+        private static final int WAITING = 1;
+        private static final int FIRING = 2; // claimed by a skip, interrupt not yet delivered
+        private static final int FIRED = 3;
+        private static final long STATUS = 3;
+        private static final long GENERATION = 4;
+
+        private static final AtomicLongFieldUpdater<Waiter> STATE = AtomicLongFieldUpdater.newUpdater(Waiter.class, "state");
+
+        private final SkipAhead skip;
+        private final Thread thread;
+        private volatile long deadline;
+        private long timeout;
+        private long skipped;
+        private boolean interrupt;
+        // the number of waits so far, above the current one's status; a skip can't claim a later wait than the one it saw
+        private volatile long state;
+
+        Waiter(SkipAhead skip, Thread thread) {
+            this.skip = skip;
+            this.thread = thread;
+        }
+
+        private void arm(long deadline, long timeout, long skipped, boolean interrupt) {
+            this.deadline = deadline;
+            this.timeout = timeout;
+            this.skipped = skipped;
+            this.interrupt = interrupt;
+            this.state = (state & ~STATUS) + GENERATION + WAITING;
+        }
+
+        /**
+         * @return the timeout, less the time skipped since the wait was armed
+         */
+        long remaining() {
+            return timeout - (skip.nanos - skipped);
+        }
+
+        /**
+         * Ends the wait. Must be called by the owning thread, once it stops waiting for whatever reason;
+         * calling it again has no effect. If the thread was woken by an interrupt, the interrupt is cleared.
+         *
+         * @return {@code false} if a skip has woken the thread up
+         */
+        boolean disarm() {
+            for (;;) {
+                final long s = state;
+                switch ((int) (s & STATUS)) {
+                    case WAITING:
+                        if (STATE.compareAndSet(this, s, s - WAITING + IDLE)) {
+                            return true;
+                        }
+                        break;
+                    case FIRING:
+                        Thread.yield();
+                        break;
+                    case FIRED:
+                        if (interrupt) {
+                            Thread.interrupted();
+                        }
+                        this.state = s - FIRED + IDLE;
+                        return false;
+                    default:
+                        return true;
+                }
+            }
+        }
+
+        private void wakeup(long now) {
+            final long s = state;
+            if ((s & STATUS) == WAITING && deadline - now <= 0) {
+                if (interrupt) {
+                    if (STATE.compareAndSet(this, s, s - WAITING + FIRING)) {
+                        thread.interrupt();
+                        this.state = s - WAITING + FIRED;
+                    }
+                } else if (STATE.compareAndSet(this, s, s - WAITING + FIRED)) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+    }
+}
@@ -6,12 +6,26 @@
  */
 package co.paralleluniverse.vtime.clock;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import co.paralleluniverse.vtime.Clock;
 
 /**
  * The system clock.
  * This clock provides "real" time, as perceived by this running JVM.
+ * Virtual threads' sleeps and timed parks are timed by a {@link VirtualThreadTimer}.
+ * <p>
+ * On Java 9+, the time in nanoseconds is read from {@code jdk.internal.misc.VM}, as {@code java.time} does,
+ * provided the agent has exported that package to this class's module; otherwise it only has millisecond precision.
  *
  * @author pron
  */
@@ -40,6 +54,19 @@ public final class SystemClock implements Clock {
         return System.nanoTime();
     }
 
+    @Override
+    public long System_currentTimeNanos() {
+        final MethodHandle getNanoTimeAdjustment = Precise.GET_NANO_TIME_ADJUSTMENT;
+        if (getNanoTimeAdjustment != null) {
+            try {
+                return (long) getNanoTimeAdjustment.invokeExact(0L); // good until 2106
+            } catch (Throwable t) {
+                throw new AssertionError(t);
+            }
+        }
+        return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+
     @Override
     public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
         return runtimeMXBean.getStartTime();
@@ -57,12 +84,43 @@ public final class SystemClock implements Clock {
 
     @Override
     public void Thread_sleep(long millis) throws InterruptedException {
-        Thread.sleep(millis);
+        if (millis > 0 && VirtualThreadTimer.isVirtual(Thread.currentThread())) {
+            VirtualThreadTimer.sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        } else {
+            Thread.sleep(millis);
+        }
     }
 
     @Override
     public void Thread_sleep(long millis, int nanos) throws InterruptedException {
-        Thread.sleep(millis, nanos);
+        if (VirtualThreadTimer.isVirtual(Thread.currentThread())) {
+            VirtualThreadTimer.sleepNanos(Util.timeoutNanos(millis, nanos));
+        } else {
+            Thread.sleep(millis, nanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long nanos = Util.toNanos(duration);
+        if (nanos < 0) {
+            return;
+        }
+        if (VirtualThreadTimer.isVirtual(Thread.currentThread())) {
+            VirtualThreadTimer.sleepNanos(nanos);
+        } else {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(nanos), (int) (nanos % 1_000_000));
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        obj.notify();
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        obj.notifyAll();
     }
 
     @Override
@@ -70,7 +128,53 @@ public final class SystemClock implements Clock {
         unsafe.park(isAbsolute, timeout);
     }
 
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (VirtualThreadTimer.isVirtual(Thread.currentThread())) {
+            if (isAbsolute) {
+                VirtualThreadTimer.parkUntil(blocker, timeout);
+            } else {
+                VirtualThreadTimer.parkNanos(blocker, timeout);
+            }
+        } else if (isAbsolute) {
+            LockSupport.parkUntil(blocker, timeout);
+        } else {
+            LockSupport.parkNanos(blocker, timeout);
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return selector.select(timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return Util.select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return timeout;
+    }
+
     @Override
     public void afterGlobalClockSetup() {
     }
+
+    /**
+     * Looked up on first use, after the agent has exported {@code jdk.internal.misc}.
+     */
+    private static final class Precise {
+        static final MethodHandle GET_NANO_TIME_ADJUSTMENT = getNanoTimeAdjustmentHandle();
+
+        private static MethodHandle getNanoTimeAdjustmentHandle() {
+            try {
+                return MethodHandles.lookup().findStatic(Class.forName("jdk.internal.misc.VM"), "getNanoTimeAdjustment",
+                        MethodType.methodType(long.class, long.class));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null; // Java 8, or not exported
+            }
+        }
+    }
 }
@@ -1,11 +1,28 @@
 package co.paralleluniverse.vtime.clock;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
 
 public final class Util {
     private static final String DATE_FORMAT = "yyyyMMdd'T'HHmmss";
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final MethodHandle ON_SPIN_WAIT = onSpinWaitHandle();
+    private static final boolean UNSAFE_PARK = System.getProperty("java.version").startsWith("1.");
 
     public static long parseDate(String date) {
         try {
@@ -19,6 +36,228 @@ public final class Util {
         return new SimpleDateFormat(DATE_FORMAT).format(new Date(date));
     }
 
+    /**
+     * Converts the timeout arguments of {@code Object.wait(long, int)} and {@code Thread.sleep(long, int)} to nanoseconds,
+     * validating them as those methods do.
+     */
+    public static long timeoutNanos(long millis, int nanos) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        if (nanos < 0 || nanos > 999999) {
+            throw new IllegalArgumentException("nanosecond timeout value out of range");
+        }
+        return TimeUnit.MILLISECONDS.toNanos(millis) + nanos;
+    }
+
+    /**
+     * Converts a duration to nanoseconds, saturating at {@code Long.MIN_VALUE} and {@code Long.MAX_VALUE}
+     * like {@code TimeUnit.NANOSECONDS.convert(Duration)} (Java 11+).
+     */
+    public static long toNanos(Duration duration) {
+        long seconds = duration.getSeconds();
+        long nanos = duration.getNano();
+        if (seconds < 0 && nanos > 0) {
+            seconds++;
+            nanos -= NANOS_PER_SECOND;
+        }
+        if (seconds > Long.MAX_VALUE / NANOS_PER_SECOND) {
+            return Long.MAX_VALUE;
+        }
+        if (seconds < Long.MIN_VALUE / NANOS_PER_SECOND) {
+            return Long.MIN_VALUE;
+        }
+        final long total = seconds * NANOS_PER_SECOND + nanos;
+        if (seconds > 0 && total < 0) {
+            return Long.MAX_VALUE;
+        }
+        if (seconds < 0 && total > 0) {
+            return Long.MIN_VALUE;
+        }
+        return total;
+    }
+
+    /**
+     * Calls {@code Selector.select(Consumer, long)}, which, like its callers, is only there on Java 11+.
+     */
+    public static int select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        try {
+            return (int) SelectorMethods.SELECT.invokeExact(selector, action, timeout);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /**
+     * Calls {@code Selector.selectNow(Consumer)}, which is only there on Java 11+.
+     */
+    public static int selectNow(Selector selector, Consumer<SelectionKey> action) throws IOException {
+        try {
+            return (int) SelectorMethods.SELECT_NOW.invokeExact(selector, action);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /**
+     * @return the {@code sun.misc.Unsafe} instance
+     */
+    public static sun.misc.Unsafe unsafe() {
+        return UnsafeHolder.UNSAFE;
+    }
+
+    /**
+     * Parks the current thread like {@code LockSupport.park(blocker)}, for a clock blocking a thread of its own accord,
+     * in a way the agent never captures. On Java 8, {@code LockSupport} parks through {@code sun.misc.Unsafe}, whose calls are captured,
+     * so {@code Unsafe} is called directly, without recording the blocker; later, {@code LockSupport} is, as it doesn't block
+     * a virtual thread's carrier.
+     */
+    public static void park(Object blocker) {
+        if (UNSAFE_PARK) {
+            unsafe().park(false, 0L);
+        } else {
+            LockSupport.park(blocker);
+        }
+    }
+
+    /**
+     * Parks the current thread like {@code LockSupport.parkNanos(blocker, nanos)}, in a way the agent never captures.
+     *
+     * @see #park(Object)
+     */
+    public static void parkNanos(Object blocker, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        if (UNSAFE_PARK) {
+            unsafe().park(false, nanos);
+        } else {
+            LockSupport.parkNanos(blocker, nanos);
+        }
+    }
+
+    /**
+     * Calls {@code Thread.onSpinWait} (Java 9+), if it's there.
+     */
+    public static void onSpinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable t) {
+                throw new AssertionError(t);
+            }
+        }
+    }
+
+    /**
+     * @return whether the current thread is a {@code ForkJoinPool}'s worker, which should block through {@code ForkJoinPool.managedBlock}
+     *         so that the pool can keep up its parallelism meanwhile
+     */
+    public static boolean isPoolWorker() {
+        return Thread.currentThread() instanceof ForkJoinWorkerThread;
+    }
+
+    /**
+     * @return whether the given thread is one of the JDK's own: those of the system thread group and the innocuous threads
+     *         running {@code Cleaner}s
+     */
+    public static boolean isSystem(Thread thread) {
+        final ThreadGroup group = thread.getThreadGroup();
+        return (group != null && group.getParent() == null) || thread.getClass().getName().endsWith(".InnocuousThread");
+    }
+
+    /**
+     * Sleeps on the given clock, through {@code ForkJoinPool.managedBlock} if the current thread is a pool worker.
+     */
+    public static void sleep(final Clock clock, final long millis, final int nanos) throws InterruptedException {
+        if (isPoolWorker()) {
+            ForkJoinPool.managedBlock(new Blocking() {
+                @Override
+                protected void run() throws InterruptedException {
+                    clock.Thread_sleep(millis, nanos);
+                }
+            });
+        } else {
+            clock.Thread_sleep(millis, nanos);
+        }
+    }
+
+    /**
+     * Waits on the given clock, through {@code ForkJoinPool.managedBlock} if the current thread is a pool worker.
+     */
+    public static void wait(final Clock clock, final Object obj, final long timeout, final int nanos) throws InterruptedException {
+        if (isPoolWorker()) {
+            ForkJoinPool.managedBlock(new Blocking() {
+                @Override
+                protected void run() throws InterruptedException {
+                    clock.Object_wait(obj, timeout, nanos);
+                }
+            });
+        } else {
+            clock.Object_wait(obj, timeout, nanos);
+        }
+    }
+
+    private static MethodHandle onSpinWaitHandle() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null; // before Java 9
+        }
+    }
+
     private Util() {
     }
+
+    /**
+     * A blocking operation run once by {@code ForkJoinPool.managedBlock}.
+     */
+    public abstract static class Blocking implements ForkJoinPool.ManagedBlocker {
+        private boolean done;
+
+        protected abstract void run() throws InterruptedException;
+
+        @Override
+        public final boolean block() throws InterruptedException {
+            run();
+            done = true;
+            return true;
+        }
+
+        @Override
+        public final boolean isReleasable() {
+            return done;
+        }
+    }
+
+    private static final class UnsafeHolder {
+        static final sun.misc.Unsafe UNSAFE = find();
+
+        private static sun.misc.Unsafe find() {
+            try {
+                final Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                return (sun.misc.Unsafe) f.get(null);
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static final class SelectorMethods {
+        static final MethodHandle SELECT = find("select", Consumer.class, long.class);
+        static final MethodHandle SELECT_NOW = find("selectNow", Consumer.class);
+
+        private static MethodHandle find(String name, Class<?>... params) {
+            try {
+                return MethodHandles.publicLookup().findVirtual(Selector.class, name, MethodType.methodType(int.class, params));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                return null; // before Java 11
+            }
+        }
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Times the real sleeps and timed parks of virtual threads for the {@link SystemClock}.
+ * <p>
+ * The JDK wakes up sleeping and parked virtual threads with a {@code ScheduledThreadPoolExecutor}, whose time is virtualized
+ * like any other's, so it would stretch or shrink the real timeouts it is given by a clock such as {@link ScaledClock}.
+ * Instead, virtual threads park without a timeout, and are unparked by a single platform thread running code which isn't instrumented.
+ *
+ * @author pron
+ */
+final class VirtualThreadTimer {
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final PriorityQueue<Entry> queue = new PriorityQueue<>(); // guarded by lock
+    private static int cancelled;                                            // guarded by lock
+    private static long seq;                                                 // guarded by lock
+    private static Thread timer;                                             // guarded by lock
+
+    /**
+     * @return whether the given thread is a virtual thread; always {@code false} before Java 21
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    static void sleepNanos(long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        final long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            parkNanos(null, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    static void parkUntil(Object blocker, long deadline) {
+        parkNanos(blocker, TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis()));
+    }
+
+    static void parkNanos(Object blocker, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        final Entry e = schedule(Thread.currentThread(), System.nanoTime() + nanos);
+        try {
+            LockSupport.park(blocker);
+        } finally {
+            cancel(e);
+        }
+    }
+
+    private static Entry schedule(Thread thread, long deadline) {
+        lock.lock();
+        try {
+            final Entry e = new Entry(thread, deadline, seq++);
+            queue.add(e);
+            if (timer == null) {
+                timer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTimer();
+                    }
+                }, "timewarp-virtual-thread-timer");
+                timer.setDaemon(true);
+                timer.start();
+            } else if (queue.peek() == e) {
+                LockSupport.unpark(timer);
+            }
+            return e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void cancel(Entry e) {
+        lock.lock();
+        try {
+            if (!e.done) {
+                e.done = true;
+                // cancelled entries are left in the queue until they're due, unless they take up most of it
+                if (++cancelled > 1024 && cancelled > queue.size() / 2) {
+                    for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+                        if (it.next().done) {
+                            it.remove();
+                        }
+                    }
+                    cancelled = 0;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void runTimer() {
+        for (;;) {
+            final long delay;
+            lock.lock();
+            try {
+                Entry e;
+                while ((e = queue.peek()) != null && (e.done || e.deadline - System.nanoTime() <= 0)) {
+                    queue.poll();
+                    if (e.done) {
+                        cancelled--;
+                    } else {
+                        e.done = true;
+                        LockSupport.unpark(e.thread);
+                    }
+                }
+                if (queue.isEmpty()) {
+                    cancelled = 0;
+                }
+                delay = e != null ? Math.max(e.deadline - System.nanoTime(), 1) : 0;
+            } finally {
+                lock.unlock();
+            }
+            // a park that is scheduled first in the meantime unparks the timer, so its wakeup isn't missed
+            if (delay > 0) {
+                LockSupport.parkNanos(VirtualThreadTimer.class, delay);
+            } else {
+                LockSupport.park(VirtualThreadTimer.class);
+            }
+        }
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null; // before Java 21
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Thread thread;
+        final long deadline;
+        final long seq;
+        boolean done; // guarded by lock
+
+        Entry(Thread thread, long deadline, long seq) {
+            this.thread = thread;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            // deadlines are compared by difference, as System.nanoTime values may wrap around
+            final long d = deadline - o.deadline;
+            return d < 0 ? -1 : d > 0 ? 1 : Long.compare(seq, o.seq);
+        }
+    }
+
+    private VirtualThreadTimer() {
+    }
+}
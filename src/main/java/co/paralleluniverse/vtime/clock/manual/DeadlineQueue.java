@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.*;
+
+/**
+ * An intrusive binary min-heap of {@link Scheduled} entries ordered by deadline, then by insertion order.
+ * Each entry records its own position in the heap, so it can be removed in {@code O(log n)} and
+ * re-added later without allocating anything.
+ * <p>
+ * A {@link #snapshot() snapshot} shares the heap until the queue is next modified, when the entries' deadlines and
+ * owners are copied out for it, so taking snapshots is cheap, and only one copy is made however many are taken in between.
+ *
+ * @author pron
+ */
+final class DeadlineQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Scheduled[] heap = new Scheduled[INITIAL_CAPACITY];
+    private int size;
+    private long seq;
+    private Snapshot snapshot; // the latest snapshot, if it still shares the heap
+
+    /**
+     * Adds an entry which must not currently be queued.
+     */
+    synchronized void add(Scheduled s) {
+        if (s.index >= 0) {
+            throw new IllegalStateException("Already queued: " + s);
+        }
+        detachSnapshot();
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        s.seq = seq++;
+        s.index = size;
+        heap[size] = s;
+        size++;
+        siftUp(s.index);
+    }
+
+    /**
+     * Removes the given entry if it is queued.
+     *
+     * @return {@code true} if the entry was queued
+     */
+    synchronized boolean remove(Scheduled s) {
+        int i = s.index;
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * Removes and returns the earliest entry whose deadline is {@code <= now}, and whose {@link Scheduled#claim() claim} succeeds.
+     * Entries that are due but fail to claim are discarded.
+     *
+     * @return the claimed entry, or {@code null} if no entry is due
+     */
+    synchronized Scheduled pollDue(long now) {
+        while (size > 0 && heap[0].deadline <= now) {
+            Scheduled s = removeAt(0);
+            if (s.claim()) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the entries currently queued, in no particular order.
+     */
+    synchronized Snapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(this, heap, size);
+        }
+        return snapshot;
+    }
+
+    private void detachSnapshot() {
+        if (snapshot != null) {
+            snapshot.copy();
+            snapshot = null;
+        }
+    }
+
+    private Scheduled removeAt(int i) {
+        detachSnapshot();
+        Scheduled s = heap[i];
+        size--;
+        Scheduled last = heap[size];
+        heap[size] = null;
+        if (i != size) {
+            heap[i] = last;
+            last.index = i;
+            siftDown(i);
+            if (heap[i] == last) {
+                siftUp(i);
+            }
+        }
+        s.index = -1;
+        return s;
+    }
+
+    private void siftUp(int i) {
+        Scheduled s = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            Scheduled p = heap[parent];
+            if (!before(s, p)) {
+                break;
+            }
+            heap[i] = p;
+            p.index = i;
+            i = parent;
+        }
+        heap[i] = s;
+        s.index = i;
+    }
+
+    private void siftDown(int i) {
+        Scheduled s = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            Scheduled c = heap[child];
+            int right = child + 1;
+            if (right < size && before(heap[right], c)) {
+                child = right;
+                c = heap[child];
+            }
+            if (!before(c, s)) {
+                break;
+            }
+            heap[i] = c;
+            c.index = i;
+            i = child;
+        }
+        heap[i] = s;
+        s.index = i;
+    }
+
+    /**
+     * The deadlines and owners of the entries queued at some point in time.
+     */
+    static final class Snapshot {
+        private final DeadlineQueue queue;
+        private Scheduled[] heap; // until copied
+        private final int size;
+        private volatile long[] deadlines;
+        private Object[] owners;
+
+        Snapshot(DeadlineQueue queue, Scheduled[] heap, int size) {
+            this.queue = queue;
+            this.heap = heap;
+            this.size = size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long deadline(int i) {
+            materialize();
+            return deadlines[i];
+        }
+
+        Object owner(int i) {
+            materialize();
+            return owners[i];
+        }
+
+        private void materialize() {
+            if (deadlines == null) {
+                synchronized (queue) {
+                    copy();
+                }
+            }
+        }
+
+        /**
+         * Called with the queue's lock held.
+         */
+        void copy() {
+            if (deadlines != null) {
+                return;
+            }
+            final long[] ds = new long[size];
+            final Object[] os = new Object[size];
+            for (int i = 0; i < size; i++) {
+                ds[i] = heap[i].deadline;
+                os[i] = heap[i].owner();
+            }
+            heap = null;
+            owners = os;
+            deadlines = ds; // written last; read outside the lock by materialize
+        }
+    }
+
+    private static boolean before(Scheduled a, Scheduled b) {
+        // deadlines are compared by difference so that they may wrap around, as System.nanoTime values do
+        long d = a.deadline - b.deadline;
+        return d < 0 || (d == 0 && a.seq < b.seq);
+    }
+}
@@ -0,0 +1,641 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.Logger;
+
+import static co.paralleluniverse.vtime.clock.Util.isSystem;
+import static co.paralleluniverse.vtime.clock.Util.park;
+import static co.paralleluniverse.vtime.clock.Util.parkNanos;
+import static co.paralleluniverse.vtime.clock.Util.parseDate;
+import static co.paralleluniverse.vtime.clock.Util.select;
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
+import static co.paralleluniverse.vtime.clock.Util.toNanos;
+
+/**
+ * A clock which runs its threads one at a time, in an order determined by a seed.
+ * <p>
+ * Threads take part in the schedule once created by {@link #threadFactory()}, or from their first call to this clock.
+ * Only one of them runs at any time. Whenever the running thread blocks on this clock (in a sleep, wait or park),
+ * blocks on a monitor, or terminates, the next thread to run is picked, using a PRNG seeded with the given seed,
+ * among the threads that are ready to run. Virtual time only advances when no thread is ready, and then directly to the
+ * earliest pending deadline, as with a {@link ManualClock} advanced by exactly that much.
+ * <p>
+ * Given the same seed, and threads created in the same order by the thread factory (from a thread which itself
+ * {@link #enter() takes part}), runs schedule threads identically, so concurrency bugs found with one seed can be replayed.
+ * To that end, {@code notify} wakes all waiting threads (a spurious wakeup being allowed), and the schedule, rather than the JVM,
+ * picks which runs first. The agent only passes {@code notify} calls on to the clock when configured with {@code deterministic},
+ * as no other clock needs them.
+ * <p>
+ * Blocking that this clock can't see, other than on monitors (such as a thread waiting for I/O, or on a {@code java.util.concurrent} lock),
+ * is detected by polling the running thread's state, and the thread then runs unscheduled until it next calls this clock.
+ * The polling thread never takes part, nor do the JDK's own threads, whose periodic timeouts, such as a {@code Cleaner}'s,
+ * would otherwise run the time ahead; should they call this clock, they block in real time.
+ *
+ * @author pron
+ */
+public final class DeterministicClock implements Clock {
+
+    public static Clock create(Clock clock, String conf) {
+        Logger.info("Deterministic clock ignore previous clock %s", clock);
+        long seed = 0;
+        int pos = conf.indexOf(':');
+        if (pos != -1) {
+            seed = Long.parseLong(conf.substring(pos + 1));
+            conf = conf.substring(0, pos);
+        }
+        long startTime;
+        if (conf.startsWith("@")) {
+            startTime = parseDate(conf.substring(1));
+        } else {
+            startTime = Long.parseLong(conf);
+        }
+        return new DeterministicClock(startTime, seed);
+    }
+
+    private static final long WATCHDOG_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int QUIESCE_POLL_NANOS = 10_000;
+
+    private final long startTime;
+    private final Random random;
+    private final List<Participant> participants = new ArrayList<>(); // in registration order; guarded by this
+    private final DeadlineQueue sleepers = new DeadlineQueue();
+    private final ThreadLocal<Participant> participant = new ThreadLocal<>();
+    private volatile long nanos;
+    private volatile Participant running;
+    private boolean scheduling;       // guarded by this
+    private volatile Thread watchdog; // set once
+    private int nextId;               // guarded by this
+
+    /**
+     * Creates a new {@code DeterministicClock} instance.
+     *
+     * @param startTime the initial time which will be returned by {@code System.currentTimeMillis()}.
+     * @param seed the seed determining the schedule
+     */
+    public DeterministicClock(long startTime, long seed) {
+        if (startTime < 0) {
+            throw new IllegalArgumentException("startTime must be >= 0; was " + startTime);
+        }
+        this.startTime = startTime;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public String toString() {
+        return "DeterministicClock{startTime=" + startTime + " nanos=" + nanos + '}';
+    }
+
+    /**
+     * Returns a {@link ThreadFactory} whose threads take part in the schedule from the moment they are created,
+     * which makes their order, and so the schedule, independent of the timing of their start.
+     */
+    public ThreadFactory threadFactory() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Participant[] p = new Participant[1];
+                final Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        participant.set(p[0]);
+                        acquire(p[0], null);
+                        try {
+                            r.run();
+                        } finally {
+                            leave(p[0]);
+                        }
+                    }
+                });
+                p[0] = register(t);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Makes the current thread take part in the schedule, if it doesn't already, waiting for its turn.
+     * The thread starting the others should take part, so that they start at deterministic points in the schedule.
+     */
+    public void enter() {
+        current();
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        return startTime + TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public long System_nanoTime() {
+        return nanos;
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(startTime) + nanos;
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        return startTime;
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        waitNanos(obj, timeoutNanos(timeout, 0));
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        waitNanos(obj, timeoutNanos(timeout, nanos));
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        sleepNanos(timeoutNanos(millis, 0));
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        sleepNanos(timeoutNanos(millis, nanos));
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        sleepNanos(Math.max(toNanos(duration), 0));
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        // a spurious wakeup is allowed, so waking all waiters lets the schedule, rather than the JVM, decide who runs first
+        Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        synchronized (this) {
+            for (Participant p : participants) {
+                if (p.waitingOn == obj) {
+                    p.woken = true;
+                }
+            }
+        }
+        obj.notifyAll();
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        if (isOutside()) {
+            final long nanos = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout;
+            if (!isAbsolute || nanos > 0) {
+                unsafe.park(false, nanos);
+            }
+            return;
+        }
+        final Participant p = current();
+        if (!isAbsolute && timeout < 0) {
+            return;
+        }
+        if (isAbsolute || timeout > 0) {
+            final long deadline = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - startTime) : nanos + timeout;
+            if (deadline <= nanos) {
+                return;
+            }
+            block(p, deadline, false, false);
+        } else {
+            block(p, 0, false, false);
+        }
+        park(null);
+        acquire(p, null);
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (isOutside()) {
+            parkNanos(blocker, isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout);
+            return;
+        }
+        final Participant p = current();
+        final long deadline = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - startTime) : nanos + timeout;
+        if (deadline <= nanos) {
+            return;
+        }
+        block(p, deadline, false, false);
+        park(blocker);
+        acquire(p, null);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        // I/O isn't simulated, so the selector waits for real
+        return selector.select(timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return timeout;
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+    }
+
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        if (isOutside()) {
+            Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+            return;
+        }
+        final Participant p = current();
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (sleepNanos > 0) {
+            block(p, nanos + sleepNanos, false, true);
+        } else {
+            p.ready = true; // a zero sleep is a yield
+            block(p, 0, false, true);
+        }
+        awaitTurn(p);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void waitNanos(Object obj, long timeoutNanos) throws InterruptedException {
+        if (isOutside()) {
+            obj.wait(timeoutNanos / 1_000_000, (int) (timeoutNanos % 1_000_000));
+            return;
+        }
+        final Participant p = current();
+        p.waitingOn = obj;
+        block(p, timeoutNanos > 0 ? nanos + timeoutNanos : 0, true, false);
+        try {
+            obj.wait();
+        } catch (InterruptedException e) {
+            if (!acquire(p, obj)) {
+                throw e;
+            }
+            return;
+        }
+        acquire(p, obj);
+    }
+
+    /**
+     * @return the current thread's participant, registering it, and waiting for its turn, if it isn't yet one.
+     */
+    private Participant current() {
+        Participant p = participant.get();
+        if (p == null) {
+            p = register(Thread.currentThread());
+            participant.set(p);
+            acquire(p, null);
+        }
+        return p;
+    }
+
+    /**
+     * @return whether the current thread never takes part: the watchdog, which would wait for a turn only it can hand out,
+     *         or one of the JDK's own threads
+     */
+    private boolean isOutside() {
+        final Thread t = Thread.currentThread();
+        return t == watchdog || (participant.get() == null && isSystem(t));
+    }
+
+    private synchronized Participant register(Thread thread) {
+        final Participant p = new Participant(thread, nextId++);
+        participants.add(p);
+        if (watchdog == null) {
+            watchdog = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            }, "DeterministicClock watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+        return p;
+    }
+
+    private synchronized void leave(Participant p) {
+        participants.remove(p);
+        sleepers.remove(p);
+        if (running == p) {
+            scheduleNext(p);
+        }
+    }
+
+    /**
+     * Called by the running thread when it is about to block; passes the turn to the next thread.
+     *
+     * @param deadline the virtual time at which the thread will be ready again, or 0 if none
+     * @param interrupt whether the thread is about to block in {@code Object.wait}, so that it must be woken by an interrupt
+     * @param inClock whether the thread will block waiting for its turn, rather than in some other operation
+     */
+    private synchronized void block(Participant p, long deadline, boolean interrupt, boolean inClock) {
+        p.interrupt = interrupt;
+        p.inClock = inClock;
+        p.fired = false;
+        if (deadline > 0) {
+            p.deadline = deadline;
+            sleepers.add(p);
+        }
+        if (running == null) {
+            running = p; // the clock is idle, so this thread, back from blocking outside the clock, is the one running
+        }
+        if (running == p) {
+            scheduleNext(p);
+        }
+    }
+
+    /**
+     * Called by a thread returning from an operation which didn't wait for its turn; waits for its turn.
+     *
+     * @param monitor the monitor the thread holds on return from {@code Object.wait}, released while waiting for the turn
+     *                so that the running thread doesn't block on it; {@code null} if none
+     * @return whether the operation ended because its deadline fired
+     */
+    private boolean acquire(Participant p, Object monitor) {
+        final boolean fired;
+        synchronized (this) {
+            sleepers.remove(p);
+            fired = p.fired;
+            if (fired && p.interrupt) {
+                Thread.interrupted(); // the interrupt, delivered while holding this lock, is ours
+            }
+            p.fired = false;
+            p.waitingOn = null;
+            p.woken = false;
+            p.inClock = true;
+            if (running == null) {
+                running = p;
+            } else if (running != p) {
+                p.ready = true;
+                p.turnMonitor = monitor;
+            }
+        }
+        if (monitor != null) {
+            awaitTurn(p, monitor);
+        } else {
+            awaitTurn(p);
+        }
+        return fired;
+    }
+
+    private void awaitTurn(Participant p) {
+        while (running != p) {
+            park(this);
+        }
+        p.inClock = false;
+    }
+
+    private void awaitTurn(Participant p, Object monitor) {
+        boolean interrupted = false;
+        while (running != p) {
+            try {
+                monitor.wait(); // woken by an interrupt when given the turn
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        synchronized (this) {
+            p.turnMonitor = null;
+            if (p.turnInterrupt) {
+                p.turnInterrupt = false;
+                if (!interrupted) {
+                    Thread.interrupted(); // the interrupt, delivered while holding this lock, is ours
+                }
+                interrupted = false;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        p.inClock = false;
+    }
+
+    /**
+     * Picks the next thread to run. Must be called with this lock held.
+     *
+     * @param self the thread giving up its turn
+     */
+    private void scheduleNext(Participant self) {
+        List<Participant> ready;
+        for (; ; ) {
+            scheduling = true;
+            try {
+                quiesce(self);
+            } finally {
+                scheduling = false;
+            }
+
+            // interrupts are delivered by the running thread, so checking for them here is deterministic
+            for (Participant p : participants) {
+                if (p.inClock && p.thread.isInterrupted() && sleepers.remove(p)) {
+                    p.ready = true;
+                }
+            }
+
+            ready = readyParticipants();
+            if (!ready.isEmpty()) {
+                break;
+            }
+            // everyone is blocked; advance time to the earliest deadline, and wake all the threads waiting for it
+            Scheduled s = sleepers.pollDue(Long.MAX_VALUE);
+            if (s == null) {
+                break;
+            }
+            final long deadline = s.deadline;
+            if (deadline > nanos) {
+                this.nanos = deadline;
+            }
+            do {
+                s.wakeup();
+            } while ((s = sleepers.pollDue(deadline)) != null);
+            // threads woken outside the clock must make their way back before the choice is made
+        }
+        if (ready.isEmpty()) {
+            running = null; // idle; the first thread to come back takes the turn
+            return;
+        }
+        final Participant next = ready.get(random.nextInt(ready.size()));
+        next.ready = false;
+        running = next;
+        if (next.turnMonitor != null) {
+            next.turnInterrupt = true;
+            next.thread.interrupt();
+        } else {
+            LockSupport.unpark(next.thread);
+        }
+    }
+
+    private List<Participant> readyParticipants() {
+        final List<Participant> ready = new ArrayList<>();
+        for (Participant p : participants) {
+            if (p.ready) {
+                ready.add(p);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Waits until all threads, other than {@code self}, are either waiting for their turn or blocked,
+     * so that the choice of the next thread doesn't depend on how fast they got there.
+     * Must be called with this lock held; releases it while waiting, to let threads which are entering the clock in.
+     */
+    private void quiesce(Participant self) {
+        boolean interrupted = false;
+        for (; ; ) {
+            boolean quiet = true;
+            for (Iterator<Participant> it = participants.iterator(); it.hasNext(); ) {
+                final Participant p = it.next();
+                if (p == self || p.inClock) {
+                    continue;
+                }
+                switch (p.thread.getState()) {
+                    case TERMINATED:
+                        it.remove();
+                        sleepers.remove(p);
+                        break;
+                    case RUNNABLE:
+                        quiet = false;
+                        break;
+                    case BLOCKED:
+                        quiet &= !isInTransit(p.thread);
+                        break;
+                    default:
+                        if (p.woken) {
+                            quiet &= !isInTransit(p.thread);
+                        }
+                        break;
+                }
+            }
+            if (quiet) {
+                break;
+            }
+            try {
+                wait(0, QUIESCE_POLL_NANOS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether a thread blocked on a monitor, or notified, is really on its way, either because the monitor has just been released,
+     * or because the monitor is this clock's
+     */
+    private boolean isInTransit(Thread t) {
+        final ThreadInfo info = ManagementFactory.getThreadMXBean().getThreadInfo(t.getId());
+        if (info == null) {
+            return false;
+        }
+        return info.getLockOwnerId() == -1
+                || (info.getLockInfo() != null && info.getLockInfo().getIdentityHashCode() == System.identityHashCode(this));
+    }
+
+    /**
+     * Passes the turn on when the running thread blocks outside of this clock, or terminates.
+     */
+    private void watch() {
+        Participant suspect = null;
+        for (; ; ) {
+            parkNanos(this, WATCHDOG_NANOS);
+            final Participant r = running;
+            if (r == null || r.inClock || r.thread.getState() == Thread.State.RUNNABLE) {
+                suspect = null;
+                continue;
+            }
+            if (r.thread.isAlive() && r != suspect) {
+                suspect = r; // only give up on a thread blocked for two consecutive checks
+                continue;
+            }
+            synchronized (this) {
+                if (running == r && !r.inClock && !scheduling) {
+                    if (!r.thread.isAlive()) {
+                        participants.remove(r);
+                        sleepers.remove(r);
+                    }
+                    scheduleNext(r);
+                }
+            }
+            suspect = null;
+        }
+    }
+
+    private static final class Participant extends Scheduled {
+        final Thread thread;
+        final int id;
+        volatile boolean ready;   // waiting for its turn
+        volatile boolean inClock; // blocked waiting for its turn, rather than in some other operation
+        boolean interrupt;        // guarded by the clock
+        boolean fired;            // guarded by the clock
+        Object waitingOn;         // the monitor the thread waits on, if any; guarded by the clock
+        boolean woken;            // notified, or timed out, but not yet back in the clock; guarded by the clock
+        Object turnMonitor;       // the monitor the thread waits on for its turn, if any; guarded by the clock
+        boolean turnInterrupt;    // whether the thread has been interrupted to take its turn; guarded by the clock
+
+        Participant(Thread thread, int id) {
+            this.thread = thread;
+            this.id = id;
+        }
+
+        @Override
+        boolean claim() {
+            return true;
+        }
+
+        @Override
+        void wakeup() {
+            // called with the clock's lock held
+            fired = true;
+            if (inClock) {
+                ready = true;
+                return;
+            }
+            woken = true;
+            if (interrupt) {
+                thread.interrupt();
+            } else {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        Object owner() {
+            return thread;
+        }
+
+        @Override
+        public String toString() {
+            return "Participant{id=" + id + " thread=" + thread.getName() + '}';
+        }
+    }
+}
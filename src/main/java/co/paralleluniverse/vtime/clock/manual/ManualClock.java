@@ -6,14 +6,23 @@
  */
 package co.paralleluniverse.vtime.clock.manual;
 
+import java.io.IOException;
 import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
 import co.paralleluniverse.vtime.Clock;
 import co.paralleluniverse.vtime.Logger;
+import co.paralleluniverse.vtime.clock.SystemClock;
+import co.paralleluniverse.vtime.clock.Util;
 
 import static co.paralleluniverse.vtime.clock.Util.parseDate;
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
+import static co.paralleluniverse.vtime.clock.Util.toNanos;
 
 /**
  * A clock that only progresses when its time is manually advanced by calls to {@link #advance(long, TimeUnit) advance}.
@@ -33,9 +42,19 @@ public final class ManualClock implements Clock {
         return new ManualClock(startTime);
     }
 
-    private final Queue<Scheduled> waiters = new ConcurrentSkipListPriorityQueue<>();
+    private static final long SETTLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SETTLE_REPORT_FRAMES = 8;
+
+    private final DeadlineQueue waiters = new DeadlineQueue();
+    private final ThreadLocal<Waiter> waiter = new ThreadLocal<Waiter>() {
+        @Override
+        protected Waiter initialValue() {
+            return new Waiter(Thread.currentThread());
+        }
+    };
     private final long startTime;
     private volatile long nanos;
+    private volatile Thread settler; // the thread in advanceAndSettle, if any
 
     /**
      * Creates a new {@code ManualClock} instance.
@@ -50,6 +69,20 @@ public final class ManualClock implements Clock {
         this.nanos = 0;
     }
 
+    /**
+     * Creates a new {@code ManualClock} instance, branching from a snapshot of another: its time is the snapshot's.
+     * <p>
+     * The snapshot's pending deadlines belong to threads and tasks of the other clock, so they are not carried over;
+     * they are reported by {@link Snapshot#pending()} so that each branch can re-create the work it needs,
+     * for example with {@link #schedule(Runnable, long) schedule}.
+     *
+     * @param snapshot the snapshot
+     */
+    public ManualClock(Snapshot snapshot) {
+        this(snapshot.startTime);
+        this.nanos = snapshot.nanos;
+    }
+
     @Override
     public String toString() {
         return "ManualClock{startTime=" + startTime + " nanos=" + nanos + '}';
@@ -57,28 +90,169 @@ public final class ManualClock implements Clock {
 
     /**
      * Advances this clock's time by the given duration.
+     * <p>
+     * Time is stepped through the deadlines that fall within the duration, in order, so that
+     * {@link #schedule(Runnable, long) callbacks} observe their own deadline as the current time.
      *
      * @param duration the time duration
      * @param unit the time duration's unit
      */
     public synchronized void advance(long duration, TimeUnit unit) {
+        advance(duration, unit, null);
+    }
+
+    /**
+     * Advances this clock's time by the given duration, and then waits until every thread woken by the advance has either
+     * blocked again on this clock (in a timed sleep, wait or park) or terminated.
+     * This allows driving the clock in a tight loop without the risk of overtaking threads that haven't yet run.
+     * <p>
+     * Threads that go on to block on anything other than this clock (such as an untimed wait, or I/O) are not considered settled,
+     * and will cause this method to time out.
+     *
+     * @param duration the time duration
+     * @param unit the time duration's unit
+     * @param timeout the maximum (real) time to wait for the woken threads to settle
+     * @param timeoutUnit the timeout's unit
+     * @throws TimeoutException if some woken threads haven't settled within the timeout; the exception's message lists them
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public synchronized void advanceAndSettle(long duration, TimeUnit unit, long timeout, TimeUnit timeoutUnit) throws TimeoutException, InterruptedException {
+        final List<Waiter> woken = new ArrayList<>();
+        settler = Thread.currentThread();
+        try {
+            advance(duration, unit, woken);
+
+            final long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+            for (; ; ) {
+                boolean settled = true;
+                for (int i = 0; i < woken.size(); i++) {
+                    final Waiter w = woken.get(i);
+                    if (w != null && (w.rearmed() || !w.thread.isAlive())) {
+                        woken.set(i, null);
+                    }
+                    settled &= woken.get(i) == null;
+                }
+                if (settled) {
+                    return;
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException(unsettledReport(woken));
+                }
+                // re-blocking threads unpark us (see await); the bound lets us notice terminated threads
+                LockSupport.parkNanos(this, Math.min(remaining, SETTLE_POLL_NANOS));
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            settler = null;
+        }
+    }
+
+    private void advance(long duration, TimeUnit unit, List<Waiter> woken) {
         if (duration <= 0) {
             throw new IllegalArgumentException("Duration must be positive; was " + duration);
         }
 
-        this.nanos += unit.toNanos(duration);
-
+        final long target = nanos + unit.toNanos(duration);
         for (; ; ) {
-            Scheduled s = waiters.peek();
-            if (s == null || s.deadline > nanos) {
-                break;
+            Scheduled s = waiters.pollDue(target);
+            if (s == null) {
+                if (nanos == target) {
+                    break;
+                }
+                // waiters added from now on see the new nanos (see await); poll once more for those added before
+                this.nanos = target;
+                continue;
+            }
+            if (s.deadline > nanos) {
+                this.nanos = s.deadline;
+            }
+            if (woken != null && s instanceof Waiter) {
+                woken.add((Waiter) s);
+            }
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Returns this clock to its initial state, so that it can be reused: releases all threads waiting on it, as if their
+     * deadline had passed, cancels all scheduled callbacks and tasks, and sets its time back to zero.
+     * <p>
+     * This should be called once the threads using the clock are done, e.g. at the end of a test.
+     */
+    public synchronized void reset() {
+        Scheduled s;
+        while ((s = waiters.pollDue(Long.MAX_VALUE)) != null) {
+            if (s instanceof Waiter) {
+                s.wakeup();
+            } else {
+                ((Future<?>) s.owner()).cancel(false);
+            }
+        }
+        this.nanos = 0;
+    }
+
+    private static String unsettledReport(List<Waiter> unsettled) {
+        final StringBuilder sb = new StringBuilder("Threads woken by advance haven't settled:");
+        for (Waiter w : unsettled) {
+            if (w == null) {
+                continue;
+            }
+            final Thread t = w.thread;
+            sb.append(String.format("%n  \"%s\" %s", t.getName(), t.getState()));
+            final StackTraceElement[] stack = t.getStackTrace();
+            for (int i = 0; i < Math.min(stack.length, SETTLE_REPORT_FRAMES); i++) {
+                sb.append(String.format("%n    at %s", stack[i]));
             }
-            // at this point we know there are runnable waiters
-            // new ones won't be added because we've already advanced nanos
-            waiters.poll().wakeup();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs the given callback once this clock's time reaches the given deadline.
+     * <p>
+     * The callback is run by the thread calling {@link #advance(long, TimeUnit) advance}, with this clock's time set to the deadline,
+     * or by the calling thread, right away, if the deadline has already passed.
+     * Callbacks must therefore be short, and must not block on this clock.
+     *
+     * @param callback the callback
+     * @param deadline the deadline, in terms of {@link #System_nanoTime()}
+     * @return a {@link ScheduledFuture} which may be used to cancel the callback
+     */
+    public ScheduledFuture<?> schedule(Runnable callback, long deadline) {
+        final ScheduledTask<Void> task = new ScheduledTask<>(this, null, Executors.<Void>callable(callback, null), deadline, 0);
+        task.schedule();
+        return task;
+    }
+
+    /**
+     * Takes a snapshot of this clock's state: its start time, its current time, and its pending deadlines with their owners.
+     * <p>
+     * Taking a snapshot is cheap: it shares the deadline queue until the queue is next modified, and only then are the pending
+     * deadlines copied out. Being a plain object, a snapshot also survives a checkpoint and restore of the whole JVM.
+     *
+     * @return the snapshot
+     */
+    public synchronized Snapshot snapshot() {
+        // holding the lock keeps advance from moving the time between reading it and the queue
+        return new Snapshot(startTime, nanos, waiters.snapshot());
+    }
+
+    void enqueue(Scheduled s) {
+        waiters.add(s);
+        if (s.deadline <= nanos && waiters.remove(s) && s.claim()) {
+            // advance raced with us and may have polled the queue before the entry was added
+            s.wakeup();
         }
     }
 
+    boolean dequeue(Scheduled s) {
+        return waiters.remove(s);
+    }
+
     @Override
     public long System_currentTimeMillis() {
         return startTime + TimeUnit.NANOSECONDS.toMillis(nanos);
@@ -89,6 +263,11 @@ public final class ManualClock implements Clock {
         return nanos;
     }
 
+    @Override
+    public long System_currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(startTime) + nanos;
+    }
+
     @Override
     public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
         return startTime;
@@ -97,31 +276,20 @@ public final class ManualClock implements Clock {
     @Override
     public void Object_wait(Object obj, long timeout) throws InterruptedException {
         if (timeout <= 0) {
-            obj.wait(timeout);
+            Util.wait(SystemClock.instance(), obj, timeout, 0);
         } else {
-            final long deadline = nanos + TimeUnit.MILLISECONDS.toNanos(timeout);
-            try {
-                InterruptScheduled s = interrupt(deadline, Thread.currentThread());
-                waiters.add(s);
-                obj.wait();
-
-                synchronized (this) {
-                    if (deadline < nanos) {
-                        s.disable();
-                    } else // advance was called between obj.wait and this synchronized block
-                    {
-                        Thread.interrupted();
-                    }
-                }
-            } catch (InterruptedException e) {
-                handleInterrupted(deadline, e);
-            }
+            waitNanos(obj, TimeUnit.MILLISECONDS.toNanos(timeout));
         }
     }
 
     @Override
     public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
-        Object_wait(obj, timeout);
+        final long timeoutNanos = timeoutNanos(timeout, nanos);
+        if (timeoutNanos == 0) {
+            Util.wait(SystemClock.instance(), obj, 0, 0);
+        } else {
+            waitNanos(obj, timeoutNanos);
+        }
     }
 
     @Override
@@ -129,96 +297,282 @@ public final class ManualClock implements Clock {
         if (millis <= 0) {
             Thread.sleep(millis);
         } else {
-            final long deadline = nanos + TimeUnit.MILLISECONDS.toNanos(millis);
-            try {
-                waiters.add(interrupt(deadline, Thread.currentThread()));
-                Thread.sleep(Long.MAX_VALUE);
-            } catch (InterruptedException e) {
-                handleInterrupted(deadline, e);
-            }
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
         }
     }
 
     @Override
     public void Thread_sleep(long millis, int nanos) throws InterruptedException {
-        Thread_sleep(millis);
+        final long sleepNanos = timeoutNanos(millis, nanos);
+        if (sleepNanos == 0) {
+            Thread.sleep(0);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long sleepNanos = toNanos(duration);
+        if (sleepNanos == 0) {
+            Thread.sleep(0);
+        } else if (sleepNanos > 0) {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        obj.notify();
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        obj.notifyAll();
     }
 
     @Override
     public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
         if (timeout <= 0) {
-            unsafe.park(isAbsolute, nanos);
+            unsafe.park(isAbsolute, timeout);
         } else {
-            final long deadline = nanos + (isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - System_currentTimeMillis()) : timeout);
-            waiters.add(unpark(deadline, Thread.currentThread()));
-            if (nanos < deadline) {
-                unsafe.park(false, 0L);
-            }
+            parkNanos(null, isAbsolute, timeout);
+        }
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (isAbsolute || timeout > 0) {
+            parkNanos(blocker, isAbsolute, timeout);
         }
     }
 
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        return select(selector, null, timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        // a blocked socket read can't be woken by advance, so its timeout stays real
+        return timeout;
+    }
+
     @Override
     public void afterGlobalClockSetup() {
     }
 
-    private void handleInterrupted(long deadline, InterruptedException e) throws InterruptedException {
-        if (nanos < deadline) {
-            throw e;
+    private void waitNanos(Object obj, long timeoutNanos) throws InterruptedException {
+        // the thread is woken with an interrupt, as obj's monitor can't be taken by the advancing thread
+        final Waiter w = await(nanos + timeoutNanos, true);
+        if (w == null) {
+            return;
+        }
+        try {
+            Util.wait(SystemClock.instance(), obj, 0, 0);
+        } catch (InterruptedException e) {
+            if (w.cancel()) {
+                waiters.remove(w);
+                throw e;
+            }
+            w.consumeInterrupt();
+            return;
+        }
+        if (w.cancel()) {
+            waiters.remove(w);
+        } else { // advance was called between obj.wait returning and the cancellation
+            w.consumeInterrupt();
         }
-        Thread.interrupted();
     }
 
-    private abstract static class Scheduled implements Comparable<Scheduled> {
-        final long deadline;
-        final Thread thread;
+    private void parkNanos(Object blocker, boolean isAbsolute, long timeout) {
+        // an absolute timeout is in epoch millis; convert it against the clock's epoch without going through System_currentTimeMillis, which truncates nanos
+        final long deadline = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - startTime) : nanos + timeout;
+        final Waiter w = await(deadline, false);
+        if (w != null) {
+            LockSupport.park(blocker); // unlike Unsafe.park, doesn't block a virtual thread's carrier
+            // park may return for any reason; make sure the waiter is out of the queue before it is reused
+            if (w.cancel()) {
+                waiters.remove(w);
+            }
+        }
+    }
 
-        Scheduled(long deadline, Thread thread) {
-            this.deadline = deadline;
-            this.thread = thread;
+    private int select(final Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        // the selector is woken up once the timeout has been advanced through, or by I/O, as usual
+        final ScheduledFuture<?> wakeup = timeout > 0 ? schedule(new Runnable() {
+            @Override
+            public void run() {
+                selector.wakeup();
+            }
+        }, nanos + TimeUnit.MILLISECONDS.toNanos(timeout)) : null;
+        try {
+            return action != null ? Util.select(selector, action, 0) : selector.select(0);
+        } finally {
+            if (wakeup != null) {
+                wakeup.cancel(false);
+            }
         }
+    }
 
-        @Override
-        public int compareTo(Scheduled o) {
-            return signum(deadline - o.deadline);
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        final Waiter w = await(nanos + sleepNanos, false);
+        if (w == null) {
+            return;
         }
+        if (Util.isPoolWorker()) {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    return !sleepOnce(w);
+                }
 
-        public abstract void wakeup();
+                @Override
+                public boolean isReleasable() {
+                    return !w.isWaiting();
+                }
+            });
+        } else {
+            while (w.isWaiting() && sleepOnce(w)) {
+            }
+        }
     }
 
-    private static int signum(long x) {
-        long y = (x & 0x7fffffffffffffffL) + 0x7fffffffffffffffL;
-        return (int) ((x >> 63) | (y >>> 63));
+    /**
+     * Parks a sleeping thread until it's woken up.
+     *
+     * @return {@code false} if the sleep is over even if its waiter says otherwise
+     */
+    private boolean sleepOnce(Waiter w) throws InterruptedException {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+            if (w.cancel()) {
+                waiters.remove(w);
+                throw new InterruptedException();
+            }
+            Thread.currentThread().interrupt(); // the sleep completed; keep the interrupt status
+            return false;
+        }
+        return true;
     }
 
-    private Scheduled unpark(long deadline, Thread t) {
-        return new Scheduled(deadline, t) {
-            @Override
-            public void wakeup() {
-                LockSupport.unpark(thread);
-            }
-        };
+    /**
+     * Registers the current thread's waiter for the given deadline.
+     *
+     * @return the registered waiter, or {@code null} if the deadline has already passed
+     */
+    private Waiter await(long deadline, boolean interrupt) {
+        final Waiter w = waiter.get();
+        w.arm(deadline, interrupt);
+        waiters.add(w);
+        w.queued();
+        final Thread s = settler;
+        if (s != null) {
+            LockSupport.unpark(s);
+        }
+        if (deadline <= nanos && w.cancel()) {
+            // advance raced with us and may have polled the queue before the waiter was added
+            waiters.remove(w);
+            return null;
+        }
+        return w;
     }
 
-    private InterruptScheduled interrupt(long deadline, Thread t) {
-        return new InterruptScheduled(deadline, t);
+    /**
+     * The state of a {@link ManualClock} at some point in time.
+     *
+     * @see ManualClock#snapshot()
+     */
+    public static final class Snapshot {
+        private final long startTime;
+        private final long nanos;
+        private final DeadlineQueue.Snapshot queue;
+        private List<Pending> pending;
+
+        Snapshot(long startTime, long nanos, DeadlineQueue.Snapshot queue) {
+            this.startTime = startTime;
+            this.nanos = nanos;
+            this.queue = queue;
+        }
+
+        /**
+         * @return the clock's start time, as returned by {@code RuntimeMXBean.getStartTime()}
+         */
+        public long startTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the clock's time, as returned by {@code System.nanoTime()}
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the deadlines pending at the time of the snapshot, earliest first
+         */
+        public synchronized List<Pending> pending() {
+            if (pending == null) {
+                final List<Pending> list = new ArrayList<>(queue.size());
+                for (int i = 0; i < queue.size(); i++) {
+                    list.add(new Pending(queue.deadline(i), queue.owner(i)));
+                }
+                Collections.sort(list, new Comparator<Pending>() {
+                    @Override
+                    public int compare(Pending a, Pending b) {
+                        return Long.signum(a.deadline - b.deadline); // by difference, like the queue
+                    }
+                });
+                pending = Collections.unmodifiableList(list);
+            }
+            return pending;
+        }
+
+        @Override
+        public String toString() {
+            return "ManualClock.Snapshot{startTime=" + startTime + " nanos=" + nanos + " pending=" + queue.size() + '}';
+        }
     }
 
-    private static class InterruptScheduled extends Scheduled {
-        private volatile boolean disabled;
+    /**
+     * A deadline pending in a {@link Snapshot}.
+     */
+    public static final class Pending {
+        private final long deadline;
+        private final Object owner;
+
+        Pending(long deadline, Object owner) {
+            this.deadline = deadline;
+            this.owner = owner;
+        }
 
-        InterruptScheduled(long deadline, Thread thread) {
-            super(deadline, thread);
+        /**
+         * @return the deadline, in terms of {@link ManualClock#System_nanoTime()}
+         */
+        public long deadline() {
+            return deadline;
         }
 
-        void disable() {
-            disabled = true;
+        /**
+         * @return what waits for the deadline: the {@link Thread} sleeping, waiting or parking,
+         * or the {@link ScheduledFuture} of a scheduled callback or task
+         */
+        public Object owner() {
+            return owner;
         }
 
         @Override
-        public void wakeup() {
-            if (!disabled) {
-                thread.interrupt();
-            }
+        public String toString() {
+            return "Pending{deadline=" + deadline + " owner=" + owner + '}';
         }
     }
 }
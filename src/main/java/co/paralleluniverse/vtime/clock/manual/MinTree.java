@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free minimum reduction over a fixed number of slots.
+ * <p>
+ * Slots are the leaves of a complete binary tree kept in an array; each inner node holds the minimum of its children.
+ * After setting a leaf, every ancestor is refreshed twice with a CAS, which guarantees that a concurrent update
+ * racing with ours is reflected either by our refresh or by its own (Jayanti's f-array technique).
+ *
+ * @author pron
+ */
+final class MinTree {
+    private final int leaves;
+    private final AtomicLongArray tree;
+
+    /**
+     * Creates a tree with all slots set to {@link Long#MAX_VALUE}.
+     */
+    MinTree(int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.leaves = n;
+        this.tree = new AtomicLongArray(2 * n);
+        for (int i = 1; i < 2 * n; i++) {
+            tree.set(i, Long.MAX_VALUE);
+        }
+    }
+
+    void set(int slot, long value) {
+        int i = leaves + slot;
+        tree.set(i, value);
+        for (i >>>= 1; i > 0; i >>>= 1) {
+            refresh(i);
+            refresh(i);
+        }
+    }
+
+    long get(int slot) {
+        return tree.get(leaves + slot);
+    }
+
+    /**
+     * @return the minimum over all slots
+     */
+    long min() {
+        return tree.get(1);
+    }
+
+    private void refresh(int i) {
+        final long old = tree.get(i);
+        final long min = Math.min(tree.get(2 * i), tree.get(2 * i + 1));
+        if (old != min) {
+            tree.compareAndSet(i, old, min);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.io.IOException;
+import java.lang.management.RuntimeMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.Logger;
+
+import static co.paralleluniverse.vtime.clock.Util.parseDate;
+import static co.paralleluniverse.vtime.clock.Util.select;
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
+import static co.paralleluniverse.vtime.clock.Util.toNanos;
+
+/**
+ * A clock for conservative parallel discrete-event simulation.
+ * <p>
+ * Each {@link #register(long, TimeUnit) registered} thread is a <i>logical process</i> with its own local virtual time,
+ * which only moves when the thread sleeps, waits or parks with a timeout. Each process declares a <i>lookahead</i>:
+ * the minimum virtual delay between its local time and any effect it may have on other processes.
+ * A process may only move its local time to {@code t} once no other process can still affect it before {@code t},
+ * i.e. once {@code t} is not past any other process's local time (or pending wakeup time) plus its lookahead.
+ * Processes therefore block only when they get ahead of that safe horizon, and independent processes run in parallel.
+ * <p>
+ * The global virtual time, returned to threads which aren't logical processes, is the minimum local time over all processes.
+ * Both it and the safe horizon are maintained as lock-free reductions. Local and global time never go backwards.
+ * <p>
+ * A thread which isn't a logical process observes the simulation: its timed sleeps, waits and parks end once the global time
+ * reaches their deadline. While no process is registered, nothing holds the global time back, so an observer's timed
+ * sleep, wait or park instead moves the global time forward to its deadline and returns at once, as do those still blocked
+ * when the last process is closed.
+ * <p>
+ * A wait or park that is ended early, by a notification or an {@code unpark}, resumes the process at the global
+ * virtual time (or its own local time, if later), as the time of the notifying process isn't known.
+ *
+ * @author pron
+ */
+public final class ParallelClock implements Clock {
+
+    public static Clock create(Clock clock, String conf) {
+        Logger.info("Parallel clock ignore previous clock %s", clock);
+        int maxProcesses = DEFAULT_MAX_PROCESSES;
+        int pos = conf.indexOf(':');
+        if (pos != -1) {
+            maxProcesses = Integer.parseInt(conf.substring(pos + 1));
+            conf = conf.substring(0, pos);
+        }
+        long startTime;
+        if (conf.startsWith("@")) {
+            startTime = parseDate(conf.substring(1));
+        } else {
+            startTime = Long.parseLong(conf);
+        }
+        return new ParallelClock(startTime, maxProcesses);
+    }
+
+    private static final int DEFAULT_MAX_PROCESSES = 1024;
+
+    private final long startTime;
+    private final LogicalProcess[] processes;
+    private final MinTree horizon;   // per process: the earliest time it may affect others
+    private final MinTree localTime; // per process: its local time
+    private final DeadlineQueue blocked = new DeadlineQueue();   // processes waiting for the horizon
+    private final DeadlineQueue observers = new DeadlineQueue(); // other threads waiting for the global time
+    private final ThreadLocal<LogicalProcess> process = new ThreadLocal<>();
+    private volatile long lastGlobalNanos; // the global time when there are no processes
+    private final ThreadLocal<Waiter> waiter = new ThreadLocal<Waiter>() {
+        @Override
+        protected Waiter initialValue() {
+            return new Waiter(Thread.currentThread());
+        }
+    };
+
+    /**
+     * Creates a new {@code ParallelClock} instance.
+     *
+     * @param startTime the initial time which will be returned by {@code System.currentTimeMillis()}.
+     * @param maxProcesses the maximum number of logical processes registered at the same time
+     */
+    public ParallelClock(long startTime, int maxProcesses) {
+        if (startTime < 0) {
+            throw new IllegalArgumentException("startTime must be >= 0; was " + startTime);
+        }
+        if (maxProcesses <= 0) {
+            throw new IllegalArgumentException("maxProcesses must be positive; was " + maxProcesses);
+        }
+        this.startTime = startTime;
+        this.processes = new LogicalProcess[maxProcesses];
+        this.horizon = new MinTree(maxProcesses);
+        this.localTime = new MinTree(maxProcesses);
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelClock{startTime=" + startTime + " globalNanos=" + globalNanos() + '}';
+    }
+
+    /**
+     * Registers the current thread as a logical process, starting at the current global virtual time.
+     *
+     * @param lookahead the process's lookahead; must be positive
+     * @param unit the lookahead's unit
+     * @return the logical process, which must be {@link LogicalProcess#close() closed} when the thread no longer takes part in the simulation
+     */
+    public LogicalProcess register(long lookahead, TimeUnit unit) {
+        if (lookahead <= 0) {
+            throw new IllegalArgumentException("Lookahead must be positive; was " + lookahead);
+        }
+        if (process.get() != null) {
+            throw new IllegalStateException("Thread " + Thread.currentThread().getName() + " is already a logical process");
+        }
+        final LogicalProcess lp;
+        synchronized (processes) {
+            int slot = -1;
+            for (int i = 0; i < processes.length; i++) {
+                if (processes[i] == null) {
+                    slot = i;
+                    break;
+                }
+            }
+            if (slot < 0) {
+                throw new IllegalStateException("Too many logical processes; maximum is " + processes.length);
+            }
+            lp = new LogicalProcess(slot, unit.toNanos(lookahead), globalNanos());
+            processes[slot] = lp;
+            publish(lp, lp.time + lp.lookahead);
+        }
+        process.set(lp);
+        return lp;
+    }
+
+    /**
+     * @return the global virtual time: the minimum local time over all logical processes, in nanoseconds since the start time
+     */
+    public long globalNanos() {
+        final long min = localTime.min();
+        return min == Long.MAX_VALUE ? lastGlobalNanos : min;
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        return startTime + TimeUnit.NANOSECONDS.toMillis(System_nanoTime());
+    }
+
+    @Override
+    public long System_nanoTime() {
+        final LogicalProcess lp = process.get();
+        return lp != null ? lp.time : globalNanos();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(startTime) + System_nanoTime();
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        return startTime;
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            obj.wait(timeout);
+        } else {
+            waitNanos(obj, TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        final long timeoutNanos = timeoutNanos(timeout, nanos);
+        if (timeoutNanos == 0) {
+            obj.wait(0);
+        } else {
+            waitNanos(obj, timeoutNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        if (millis <= 0) {
+            Thread.sleep(millis);
+        } else {
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        final long sleepNanos = timeoutNanos(millis, nanos);
+        if (sleepNanos == 0) {
+            Thread.sleep(0);
+        } else {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long sleepNanos = toNanos(duration);
+        if (sleepNanos == 0) {
+            Thread.sleep(0);
+        } else if (sleepNanos > 0) {
+            sleepNanos(sleepNanos);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        obj.notify();
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        obj.notifyAll();
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        if (timeout <= 0) {
+            unsafe.park(isAbsolute, timeout);
+        } else {
+            parkNanos(null, isAbsolute, timeout);
+        }
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        if (isAbsolute || timeout > 0) {
+            parkNanos(blocker, isAbsolute, timeout);
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        // I/O isn't simulated, so the selector waits for real
+        return selector.select(timeout);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        return select(selector, action, timeout);
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return timeout;
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+    }
+
+    private void waitNanos(Object obj, long timeoutNanos) throws InterruptedException {
+        final long deadline = System_nanoTime() + timeoutNanos;
+        final Waiter w = await(deadline, true);
+        if (w != null) {
+            try {
+                obj.wait();
+                if (w.cancel()) {
+                    dequeue(w);
+                } else { // the deadline fired between obj.wait returning and the cancellation
+                    w.consumeInterrupt();
+                }
+            } catch (InterruptedException e) {
+                if (w.cancel()) {
+                    dequeue(w);
+                    resume(deadline, w);
+                    throw e;
+                }
+                w.consumeInterrupt();
+            }
+        }
+        resume(deadline, w);
+    }
+
+    private void parkNanos(Object blocker, boolean isAbsolute, long timeout) {
+        final long now = System_nanoTime();
+        final long deadline = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(timeout - startTime) : now + timeout;
+        final Waiter w = await(deadline, false);
+        if (w != null) {
+            LockSupport.park(blocker); // unlike Unsafe.park, doesn't block a virtual thread's carrier
+            if (w.cancel()) {
+                dequeue(w);
+            }
+        }
+        resume(deadline, w);
+    }
+
+    private void sleepNanos(long sleepNanos) throws InterruptedException {
+        final long deadline = System_nanoTime() + sleepNanos;
+        final Waiter w = await(deadline, false);
+        while (w != null && w.isWaiting()) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                if (w.cancel()) {
+                    dequeue(w);
+                    resume(deadline, w);
+                    throw new InterruptedException();
+                }
+                Thread.currentThread().interrupt(); // the sleep completed; keep the interrupt status
+                break;
+            }
+        }
+        resume(deadline, w);
+    }
+
+    /**
+     * Registers the current thread's waiter for the given deadline.
+     * A logical process promises not to affect others before the deadline plus its lookahead.
+     *
+     * @return the registered waiter, or {@code null} if the deadline is already safe
+     */
+    private Waiter await(long deadline, boolean interrupt) {
+        final LogicalProcess lp = process.get();
+        if (lp != null) {
+            publish(lp, deadline + lp.lookahead);
+            release();
+        }
+        if (isSafe(lp, deadline)) {
+            return null;
+        }
+        final DeadlineQueue queue = lp != null ? blocked : observers;
+        final Waiter w = waiter.get();
+        w.arm(deadline, interrupt);
+        queue.add(w);
+        w.queued();
+        if (isSafe(lp, deadline) && w.cancel()) {
+            // the horizon moved before the waiter was added
+            queue.remove(w);
+            return null;
+        }
+        return w;
+    }
+
+    private void dequeue(Waiter w) {
+        if (!blocked.remove(w)) {
+            observers.remove(w);
+        }
+    }
+
+    /**
+     * Moves the current thread's local time once its wait is over.
+     *
+     * @param deadline the wait's deadline
+     * @param w the wait's waiter, or {@code null} if the wait did not block
+     */
+    private void resume(long deadline, Waiter w) {
+        final LogicalProcess lp = process.get();
+        if (lp == null) {
+            return;
+        }
+        final boolean timedOut = w == null || w.hasFired();
+        final long time = timedOut ? deadline : Math.min(deadline, Math.max(lp.time, globalNanos()));
+        if (time > lp.time) {
+            lp.time = time;
+            localTime.set(lp.slot, time);
+        }
+        publish(lp, lp.time + lp.lookahead);
+        release();
+    }
+
+    private boolean isSafe(LogicalProcess lp, long deadline) {
+        return lp != null ? deadline <= horizon.min() : deadline <= globalNanos() || advanceUnheld(deadline);
+    }
+
+    /**
+     * Moves the global time to an observer's deadline if no logical process holds it back.
+     *
+     * @return {@code true} if there are no logical processes
+     */
+    private boolean advanceUnheld(long deadline) {
+        synchronized (processes) {
+            if (localTime.min() != Long.MAX_VALUE) {
+                return false;
+            }
+            lastGlobalNanos = Math.max(lastGlobalNanos, deadline);
+            return true;
+        }
+    }
+
+    private void publish(LogicalProcess lp, long earliestEffect) {
+        horizon.set(lp.slot, earliestEffect);
+    }
+
+    /**
+     * Wakes processes whose deadline has become safe, and other threads whose deadline the global time has reached.
+     */
+    private void release() {
+        Scheduled s;
+        while ((s = blocked.pollDue(horizon.min())) != null) {
+            s.wakeup();
+        }
+        while ((s = observers.pollDue(globalNanos())) != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * A logical process of a {@link ParallelClock}: a thread with its own local virtual time.
+     */
+    public final class LogicalProcess implements AutoCloseable {
+        final int slot;
+        final long lookahead;
+        volatile long time;
+
+        LogicalProcess(int slot, long lookahead, long time) {
+            this.slot = slot;
+            this.lookahead = lookahead;
+            this.time = time;
+            localTime.set(slot, time);
+        }
+
+        /**
+         * @return the process's local virtual time, in nanoseconds since the clock's start time
+         */
+        public long localNanos() {
+            return time;
+        }
+
+        /**
+         * @return the process's lookahead, in nanoseconds
+         */
+        public long lookaheadNanos() {
+            return lookahead;
+        }
+
+        /**
+         * Removes this process from the simulation; it will no longer hold back the other processes.
+         * Must be called by the process's thread.
+         */
+        @Override
+        public void close() {
+            if (process.get() != this) {
+                throw new IllegalStateException("Logical process must be closed by its own thread");
+            }
+            process.remove();
+            synchronized (processes) {
+                lastGlobalNanos = Math.max(lastGlobalNanos, time);
+                horizon.set(slot, Long.MAX_VALUE);
+                localTime.set(slot, Long.MAX_VALUE);
+                processes[slot] = null;
+                if (localTime.min() == Long.MAX_VALUE) {
+                    // the last process is gone: nothing holds the observers back any more
+                    Scheduled s;
+                    while ((s = observers.pollDue(Long.MAX_VALUE)) != null) {
+                        lastGlobalNanos = Math.max(lastGlobalNanos, s.deadline);
+                        s.wakeup();
+                    }
+                }
+            }
+            release();
+        }
+
+        @Override
+        public String toString() {
+            return "LogicalProcess{slot=" + slot + " time=" + time + " lookahead=" + lookahead + '}';
+        }
+    }
+}
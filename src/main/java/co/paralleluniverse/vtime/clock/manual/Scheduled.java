@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+/**
+ * An entry in a {@link DeadlineQueue}.
+ * Entries are mutable and may be re-queued once they have been removed, so a single instance can serve
+ * any number of successive deadlines.
+ *
+ * @author pron
+ */
+abstract class Scheduled {
+    long deadline;
+    long seq;   // insertion order, set by the queue; breaks ties between equal deadlines
+    int index = -1; // position in the queue's heap, or -1 when not queued
+
+    /**
+     * Called, with the queue's lock held, when the entry is removed because it is due.
+     *
+     * @return {@code true} if {@link #wakeup()} should be called; {@code false} if the entry has been cancelled
+     */
+    abstract boolean claim();
+
+    /**
+     * Called after a successful {@link #claim()}, without holding the queue's lock.
+     */
+    abstract void wakeup();
+
+    /**
+     * @return what is waiting for this entry's deadline, as reported by a snapshot: a thread, or a scheduled task
+     */
+    abstract Object owner();
+}
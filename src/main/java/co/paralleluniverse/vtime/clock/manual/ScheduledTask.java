@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.concurrent.*;
+
+/**
+ * A task run when a {@link ManualClock}'s time reaches its deadline.
+ *
+ * @author pron
+ */
+final class ScheduledTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+    private final ManualClock clock;
+    private final VirtualScheduledExecutorService owner; // null for plain clock callbacks
+    private final long period; // > 0 for fixed rate, < 0 for fixed delay, 0 for one-shot
+
+    private final Scheduled entry = new Scheduled() {
+        @Override
+        boolean claim() {
+            return !isDone();
+        }
+
+        @Override
+        void wakeup() {
+            if (owner != null) {
+                owner.dispatch(ScheduledTask.this);
+            } else {
+                run();
+            }
+        }
+
+        @Override
+        Object owner() {
+            return ScheduledTask.this;
+        }
+    };
+
+    ScheduledTask(ManualClock clock, VirtualScheduledExecutorService owner, Callable<V> callable, long deadline, long period) {
+        super(callable);
+        this.clock = clock;
+        this.owner = owner;
+        this.period = period;
+        this.entry.deadline = deadline;
+    }
+
+    /**
+     * Queues this task on the clock, or runs it right away if its deadline has passed.
+     */
+    void schedule() {
+        clock.enqueue(entry);
+    }
+
+    @Override
+    public boolean isPeriodic() {
+        return period != 0;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(entry.deadline - clock.System_nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this) {
+            return 0;
+        }
+        final long d = o instanceof ScheduledTask
+                ? entry.deadline - ((ScheduledTask<?>) o).entry.deadline
+                : getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+        return d < 0 ? -1 : (d > 0 ? 1 : 0);
+    }
+
+    @Override
+    public void run() {
+        if (!isPeriodic()) {
+            super.run();
+        } else if (runAndReset()) {
+            if (owner != null && owner.isShutdown()) {
+                cancel(false);
+                return;
+            }
+            entry.deadline = period > 0 ? entry.deadline + period : clock.System_nanoTime() - period;
+            schedule();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            clock.dequeue(entry);
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void done() {
+        if (owner != null) {
+            owner.done(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledTask{deadline=" + entry.deadline + " period=" + period + '}';
+    }
+}
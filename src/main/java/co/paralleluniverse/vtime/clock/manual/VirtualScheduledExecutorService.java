@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link ScheduledExecutorService} whose delays are measured by a {@link ManualClock}, and which needs no thread of its own.
+ * <p>
+ * Delayed tasks are kept in the clock's deadline queue, and are run when {@link ManualClock#advance(long, TimeUnit) advance}
+ * reaches their deadline: either by the advancing thread itself, with the clock's time set to the task's deadline,
+ * or by a given {@link Executor}, such as a bounded thread pool.
+ * Tasks submitted with no delay are run right away, by the submitting thread or by the executor.
+ *
+ * @author pron
+ */
+public final class VirtualScheduledExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
+    private final ManualClock clock;
+    private final Executor executor;
+    private final Set<ScheduledTask<?>> tasks = Collections.newSetFromMap(new ConcurrentHashMap<ScheduledTask<?>, Boolean>());
+    private final Object termination = new Object();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a {@code VirtualScheduledExecutorService} which runs due tasks on the thread advancing the clock.
+     *
+     * @param clock the clock measuring the delays
+     */
+    public VirtualScheduledExecutorService(ManualClock clock) {
+        this(clock, null);
+    }
+
+    /**
+     * Creates a {@code VirtualScheduledExecutorService} which runs due tasks on the given executor.
+     *
+     * @param clock the clock measuring the delays
+     * @param executor the executor running due tasks, or {@code null} to run them on the thread advancing the clock
+     */
+    public VirtualScheduledExecutorService(ManualClock clock, Executor executor) {
+        if (clock == null) {
+            throw new NullPointerException();
+        }
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualScheduledExecutorService{clock=" + clock + " executor=" + executor + " tasks=" + tasks.size() + '}';
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(Executors.<Void>callable(command, null), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        if (callable == null || unit == null) {
+            throw new NullPointerException();
+        }
+        return enqueue(new ScheduledTask<>(clock, this, callable, deadline(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive; was " + period);
+        }
+        return enqueue(new ScheduledTask<>(clock, this, Executors.<Void>callable(command, null), deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be positive; was " + delay);
+        }
+        return enqueue(new ScheduledTask<>(clock, this, Executors.<Void>callable(command, null), deadline(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return schedule(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return schedule(Executors.callable(task, result), 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return schedule(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        // as in ScheduledThreadPoolExecutor, delayed tasks still run, but periodic ones are cancelled
+        for (ScheduledTask<?> task : tasks) {
+            if (task.isPeriodic()) {
+                task.cancel(false);
+            }
+        }
+        tryTerminate();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        final List<Runnable> notRun = new ArrayList<>();
+        for (ScheduledTask<?> task : tasks) {
+            if (task.cancel(false)) {
+                notRun.add(task);
+            }
+        }
+        tryTerminate();
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    /**
+     * Blocks until all tasks have completed after a shutdown request, or the timeout, measured by the clock, elapses.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = deadline(timeout, unit);
+        final ScheduledFuture<?> timer = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tryTerminate();
+            }
+        }, deadline);
+        try {
+            synchronized (termination) {
+                while (!isTerminated()) {
+                    if (clock.System_nanoTime() >= deadline) {
+                        return false;
+                    }
+                    termination.wait();
+                }
+                return true;
+            }
+        } finally {
+            timer.cancel(false);
+        }
+    }
+
+    void dispatch(ScheduledTask<?> task) {
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    void done(ScheduledTask<?> task) {
+        if (tasks.remove(task)) {
+            tryTerminate();
+        }
+    }
+
+    private <V> ScheduledTask<V> enqueue(ScheduledTask<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        tasks.add(task);
+        task.schedule();
+        return task;
+    }
+
+    private long deadline(long delay, TimeUnit unit) {
+        return clock.System_nanoTime() + Math.max(0, unit.toNanos(delay));
+    }
+
+    private void tryTerminate() {
+        synchronized (termination) {
+            termination.notifyAll();
+        }
+    }
+}
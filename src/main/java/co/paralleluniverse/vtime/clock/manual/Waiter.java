@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread's timed wait on a {@link ManualClock}.
+ * A thread has at most one pending timed wait, so each thread owns a single {@code Waiter} which is re-armed
+ * for every sleep, wait or park.
+ *
+ * @author pron
+ */
+final class Waiter extends Scheduled {
+    static final int IDLE = 0;
+    static final int WAITING = 1;
+    static final int FIRING = 2;     // claimed, interrupt not yet delivered
+    static final int DELIVERING = 3; // the interrupt is being delivered
+    static final int FIRED = 4;
+    static final int CANCELLED = 5;
+
+    private static final AtomicIntegerFieldUpdater<Waiter> STATE = AtomicIntegerFieldUpdater.newUpdater(Waiter.class, "state");
+
+    final Thread thread;
+    private boolean interrupt;
+    private volatile boolean claimedInterrupt; // the value of interrupt when the last wait was claimed, with the queue's lock held
+    private volatile int state;
+    private volatile int arms; // number of waits so far; lets ManualClock.advanceAndSettle tell when the thread has blocked again
+    private int firedArms;     // the value of arms when the last wait fired; only accessed by the advancing thread
+
+    Waiter(Thread thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * Prepares this waiter for a new wait. Must be called by the owning thread before adding it to the queue.
+     *
+     * @param deadline the wait's deadline
+     * @param interrupt whether the thread is woken by an interrupt (for {@code Object.wait}) rather than by {@code unpark}
+     */
+    void arm(long deadline, boolean interrupt) {
+        this.deadline = deadline;
+        this.interrupt = interrupt;
+        this.state = WAITING;
+    }
+
+    /**
+     * Called by the owning thread once this waiter has been added to the queue.
+     */
+    void queued() {
+        arms++; // only written by the owning thread
+    }
+
+    /**
+     * @return whether the owning thread has started another wait since this waiter last fired
+     */
+    boolean rearmed() {
+        return arms != firedArms;
+    }
+
+    boolean isWaiting() {
+        return state == WAITING;
+    }
+
+    boolean hasFired() {
+        final int s = state;
+        return s == FIRING || s == DELIVERING || s == FIRED;
+    }
+
+    /**
+     * Called by the owning thread when it stops waiting before the deadline was reached.
+     *
+     * @return {@code true} if the wait was cancelled; {@code false} if the deadline has already fired
+     */
+    boolean cancel() {
+        return STATE.compareAndSet(this, WAITING, CANCELLED);
+    }
+
+    /**
+     * Waits until a pending wakeup interrupt has been delivered to the owning thread, then clears it.
+     * Must be called by the owning thread after {@link #cancel()} has failed on an interrupting wait.
+     */
+    void consumeInterrupt() {
+        for (int s = state; s == FIRING || s == DELIVERING; s = state) {
+            Thread.yield();
+        }
+        Thread.interrupted();
+    }
+
+    @Override
+    boolean claim() {
+        if (STATE.compareAndSet(this, WAITING, interrupt ? FIRING : FIRED)) {
+            claimedInterrupt = interrupt;
+            firedArms = arms;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * An unparked thread may return, and re-arm this waiter, before this is called, so the wake mode is the one captured by
+     * {@link #claim()}, and the thread is only interrupted by whoever moves the waiter out of {@code FIRING}; a waiter re-armed
+     * in the meantime is left as it is. An interrupting wait, in turn, can't be re-armed before its interrupt is delivered,
+     * as its thread waits for it in {@link #consumeInterrupt()}; so {@code claimedInterrupt} can only have been overwritten,
+     * by a later claim, if the claim this call follows was an unpark.
+     */
+    @Override
+    void wakeup() {
+        if (!claimedInterrupt) {
+            LockSupport.unpark(thread);
+        } else if (STATE.compareAndSet(this, FIRING, DELIVERING)) {
+            thread.interrupt();
+            state = FIRED;
+        }
+    }
+
+    @Override
+    Object owner() {
+        return thread;
+    }
+
+    @Override
+    public String toString() {
+        return "Waiter{thread=" + thread.getName() + " deadline=" + deadline + " state=" + state + '}';
+    }
+}
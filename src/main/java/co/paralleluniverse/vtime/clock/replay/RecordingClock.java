@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.replay;
+
+import java.io.*;
+import java.lang.management.RuntimeMXBean;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.Logger;
+
+import static co.paralleluniverse.vtime.clock.replay.TraceFormat.*;
+
+/**
+ * A clock which records, per thread, every time it returns, and how long every sleep, wait and park took,
+ * into a memory-mapped trace file, to be replayed by a {@link ReplayClock}.
+ * <p>
+ * The file is a ring: once full, the oldest records are overwritten. Each thread writes into a block of its own,
+ * so recording takes no lock, and costs a couple of memory writes per call. A block a live thread is still writing into
+ * is never handed to another, so a slow thread's block is skipped when the ring wraps around; should every block be taken,
+ * a thread drops its records until one is free.
+ * As the file is memory-mapped, the recording survives a crash of the JVM.
+ *
+ * @author pron
+ */
+public final class RecordingClock implements Clock {
+    private static final long DEFAULT_SIZE_MB = 64;
+
+    public static Clock create(Clock clock, String conf) {
+        long sizeMB = DEFAULT_SIZE_MB;
+        int pos = conf.indexOf("#");
+        if (pos != -1) {
+            sizeMB = Long.parseLong(conf.substring(pos + 1));
+            conf = conf.substring(0, pos);
+        }
+        return new RecordingClock(clock, new File(conf), sizeMB * 1024 * 1024);
+    }
+
+    private final Clock source;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int blockSize;
+    private final int blockCount;
+    private final int recordsPerBlock;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    private final AtomicReferenceArray<Thread> writers; // the thread writing into each block, if any
+    private final ThreadKeys keys = new ThreadKeys();
+    private final ThreadLocal<Cursor> cursor = new ThreadLocal<Cursor>() {
+        @Override
+        protected Cursor initialValue() {
+            return new Cursor(keys.next(Thread.currentThread()));
+        }
+    };
+
+    /**
+     * Constructs a {@code RecordingClock} recording the given clock.
+     *
+     * @param source the {@link Clock clock} being recorded
+     * @param file the trace file, which is overwritten
+     * @param size the size of the trace file, in bytes
+     */
+    public RecordingClock(Clock source, File file, long size) {
+        this.source = source;
+        this.file = file;
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        final long blocks = (size - HEADER_SIZE) / blockSize;
+        if (blocks <= 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Trace file size must be between " + (HEADER_SIZE + blockSize) + " and " + Integer.MAX_VALUE + " bytes; was " + size);
+        }
+        this.blockCount = (int) blocks;
+        this.recordsPerBlock = recordsPerBlock(blockSize);
+        this.writers = new AtomicReferenceArray<>(blockCount);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final long length = HEADER_SIZE + (long) blockCount * blockSize;
+            raf.setLength(0); // discard any previous recording
+            raf.setLength(length);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            Logger.warning("Unable to create trace file '%s' :", e, file.getAbsolutePath());
+            throw new RuntimeException(e);
+        }
+        buffer.putInt(BLOCK_SIZE_OFFSET, blockSize);
+        buffer.putInt(BLOCK_COUNT_OFFSET, blockCount);
+        buffer.putLong(MAGIC_OFFSET, MAGIC);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingClock{source=" + source + " file=" + file + '}';
+    }
+
+    /**
+     * Writes the recording to the storage device.
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        final long millis = source.System_currentTimeMillis();
+        record(CURRENT_TIME_MILLIS, millis);
+        return millis;
+    }
+
+    @Override
+    public long System_nanoTime() {
+        final long nanos = source.System_nanoTime();
+        record(NANO_TIME, nanos);
+        return nanos;
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        final long nanos = source.System_currentTimeNanos();
+        record(CURRENT_TIME_NANOS, nanos);
+        return nanos;
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        final long startTime = source.RuntimeMXBean_getStartTime(runtimeMXBean);
+        record(START_TIME, startTime);
+        return startTime;
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        final long start = source.System_nanoTime();
+        try {
+            source.Object_wait(obj, timeout);
+        } finally {
+            record(WAIT, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        final long start = source.System_nanoTime();
+        try {
+            source.Object_wait(obj, timeout, nanos);
+        } finally {
+            record(WAIT, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        final long start = source.System_nanoTime();
+        try {
+            source.Thread_sleep(millis);
+        } finally {
+            record(SLEEP, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        final long start = source.System_nanoTime();
+        try {
+            source.Thread_sleep(millis, nanos);
+        } finally {
+            record(SLEEP, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        final long start = source.System_nanoTime();
+        try {
+            source.Thread_sleep(duration);
+        } finally {
+            record(SLEEP, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        final long start = source.System_nanoTime();
+        source.Unsafe_park(unsafe, isAbsolute, timeout);
+        record(PARK, source.System_nanoTime() - start);
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        final long start = source.System_nanoTime();
+        source.LockSupport_park(blocker, isAbsolute, timeout);
+        record(PARK, source.System_nanoTime() - start);
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        final long start = source.System_nanoTime();
+        try {
+            return source.Selector_select(selector, timeout);
+        } finally {
+            record(SELECT, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        final long start = source.System_nanoTime();
+        try {
+            return source.Selector_select(selector, action, timeout);
+        } finally {
+            record(SELECT, source.System_nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout(timeout);
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+        source.afterGlobalClockSetup();
+    }
+
+    private void record(long kind, long value) {
+        final Cursor c = cursor.get();
+        if (c.count == recordsPerBlock && !claimBlock(c)) {
+            return;
+        }
+        final int at = c.block + BLOCK_HEADER_SIZE + c.count * RECORD_SIZE;
+        buffer.putLong(at, kind);
+        buffer.putLong(at + 8, value);
+        buffer.putInt(c.block + BLOCK_COUNT_OFFSET_IN_BLOCK, ++c.count);
+    }
+
+    /**
+     * Releases the current thread's block, and claims the next one no other live thread is writing into.
+     * A thread's writes into its block happen before it releases it, or terminates, so the next writer never races with it.
+     *
+     * @return {@code false} if every block is taken
+     */
+    private boolean claimBlock(Cursor c) {
+        final Thread self = Thread.currentThread();
+        if (c.slot >= 0) {
+            writers.set(c.slot, null);
+            c.slot = -1;
+        }
+        for (int i = 0; i < blockCount; i++) {
+            final long seq = nextSeq.getAndIncrement();
+            final int slot = (int) ((seq - 1) % blockCount);
+            final Thread writer = writers.get(slot);
+            if ((writer == null || !writer.isAlive()) && writers.compareAndSet(slot, writer, self)) {
+                final int block = (int) blockOffset(seq, blockSize, blockCount);
+                buffer.putLong(block + BLOCK_SEQ_OFFSET, 0); // the block is invalid while its header is rewritten
+                buffer.putLong(block + BLOCK_KEY_OFFSET, c.key);
+                buffer.putInt(block + BLOCK_COUNT_OFFSET_IN_BLOCK, 0);
+                buffer.putLong(block + BLOCK_SEQ_OFFSET, seq);
+                c.slot = slot;
+                c.block = block;
+                c.count = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Cursor {
+        final long key;
+        int slot = -1;
+        int block;
+        int count = recordsPerBlock; // no block yet
+
+        Cursor(long key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.replay;
+
+import java.io.*;
+import java.lang.management.RuntimeMXBean;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.Logger;
+import co.paralleluniverse.vtime.clock.Util;
+
+import static co.paralleluniverse.vtime.clock.Util.timeoutNanos;
+import static co.paralleluniverse.vtime.clock.Util.toNanos;
+import static co.paralleluniverse.vtime.clock.replay.TraceFormat.*;
+
+/**
+ * A clock which replays a trace written by a {@link RecordingClock}.
+ * <p>
+ * Each thread is given back, in order, the times recorded by the thread with the same name (and the same number of
+ * threads with that name before it). Timed sleeps, waits and parks which were recorded return immediately, as a
+ * spurious wakeup would, so a run is replayed as fast as it executes; untimed waits and parks still block,
+ * as other threads have to wake them up.
+ * <p>
+ * Once a thread's calls no longer match its recording, or the recording runs out, the thread falls back to the source clock.
+ * If the ring of the trace file had wrapped around, each thread replays from its oldest surviving record.
+ *
+ * @author pron
+ */
+public final class ReplayClock implements Clock {
+
+    public static Clock create(Clock clock, String conf) {
+        return new ReplayClock(clock, new File(conf));
+    }
+
+    private final Clock source;
+    private final File file;
+    private final Map<Long, Recording> recordings;
+    private final ThreadKeys keys = new ThreadKeys();
+    private final ThreadLocal<Recording> recording = new ThreadLocal<Recording>() {
+        @Override
+        protected Recording initialValue() {
+            final Thread thread = Thread.currentThread();
+            final Recording r = recordings.remove(keys.next(thread));
+            return r != null ? r : new Recording(new long[0], new long[0]);
+        }
+    };
+
+    /**
+     * Constructs a {@code ReplayClock} replaying the given trace file.
+     *
+     * @param source the {@link Clock clock} used by threads whose calls no longer match the recording
+     * @param file the trace file written by a {@link RecordingClock}
+     */
+    public ReplayClock(Clock source, File file) {
+        this.source = source;
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            this.recordings = new ConcurrentHashMap<>(read(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())));
+        } catch (IOException e) {
+            Logger.warning("Unable to read trace file '%s' :", e, file.getAbsolutePath());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayClock{source=" + source + " file=" + file + '}';
+    }
+
+    @Override
+    public long System_currentTimeMillis() {
+        final Recording r = recording.get();
+        return r.next(CURRENT_TIME_MILLIS) ? r.value : source.System_currentTimeMillis();
+    }
+
+    @Override
+    public long System_nanoTime() {
+        final Recording r = recording.get();
+        return r.next(NANO_TIME) ? r.value : source.System_nanoTime();
+    }
+
+    @Override
+    public long System_currentTimeNanos() {
+        final Recording r = recording.get();
+        return r.next(CURRENT_TIME_NANOS) ? r.value : source.System_currentTimeNanos();
+    }
+
+    @Override
+    public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+        final Recording r = recording.get();
+        return r.next(START_TIME) ? r.value : source.RuntimeMXBean_getStartTime(runtimeMXBean);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout) throws InterruptedException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        waitNanos(obj, timeout, 0);
+    }
+
+    @Override
+    public void Object_wait(Object obj, long timeout, int nanos) throws InterruptedException {
+        timeoutNanos(timeout, nanos); // validates the arguments
+        waitNanos(obj, timeout, nanos);
+    }
+
+    @Override
+    public void Thread_sleep(long millis) throws InterruptedException {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        if (!skip(SLEEP)) {
+            source.Thread_sleep(millis);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(long millis, int nanos) throws InterruptedException {
+        timeoutNanos(millis, nanos); // validates the arguments
+        if (!skip(SLEEP)) {
+            source.Thread_sleep(millis, nanos);
+        }
+    }
+
+    @Override
+    public void Thread_sleep(Duration duration) throws InterruptedException {
+        if (toNanos(duration) < 0) {
+            // doesn't sleep, nor check for interrupts
+            source.Thread_sleep(duration);
+            recording.get().next(SLEEP);
+        } else if (!skip(SLEEP)) {
+            source.Thread_sleep(duration);
+        }
+    }
+
+    @Override
+    public void Object_notify(Object obj) {
+        source.Object_notify(obj);
+    }
+
+    @Override
+    public void Object_notifyAll(Object obj) {
+        source.Object_notifyAll(obj);
+    }
+
+    @Override
+    public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+        if (isAbsolute || timeout > 0) {
+            if (!recording.get().next(PARK)) {
+                source.Unsafe_park(unsafe, isAbsolute, timeout);
+            }
+        } else {
+            source.Unsafe_park(unsafe, isAbsolute, timeout);
+            recording.get().next(PARK);
+        }
+    }
+
+    @Override
+    public void LockSupport_park(Object blocker, boolean isAbsolute, long timeout) {
+        // always timed
+        if (!recording.get().next(PARK)) {
+            source.LockSupport_park(blocker, isAbsolute, timeout);
+        }
+    }
+
+    @Override
+    public int Selector_select(Selector selector, long timeout) throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        if (timeout > 0 && recording.get().next(SELECT)) {
+            return selector.selectNow(); // whatever is ready, as if the timeout had expired
+        }
+        final int n = source.Selector_select(selector, timeout);
+        if (timeout == 0) {
+            recording.get().next(SELECT);
+        }
+        return n;
+    }
+
+    @Override
+    public int Selector_select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        if (timeout > 0 && recording.get().next(SELECT)) {
+            return Util.selectNow(selector, action);
+        }
+        final int n = source.Selector_select(selector, action, timeout);
+        if (timeout == 0) {
+            recording.get().next(SELECT);
+        }
+        return n;
+    }
+
+    @Override
+    public int Socket_soTimeout(int timeout) {
+        return source.Socket_soTimeout(timeout);
+    }
+
+    @Override
+    public void afterGlobalClockSetup() {
+        source.afterGlobalClockSetup();
+    }
+
+    private void waitNanos(Object obj, long timeout, int nanos) throws InterruptedException {
+        if (timeout == 0 && nanos == 0) {
+            source.Object_wait(obj, 0);
+            recording.get().next(WAIT);
+            return;
+        }
+        if (!Thread.holdsLock(obj)) {
+            throw new IllegalMonitorStateException();
+        }
+        if (!skip(WAIT)) {
+            source.Object_wait(obj, timeout, nanos);
+        }
+    }
+
+    /**
+     * Consumes the recording of a timed operation, which then doesn't need to block.
+     *
+     * @return {@code true} if the operation was recorded
+     */
+    private boolean skip(long kind) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return recording.get().next(kind);
+    }
+
+    private static Map<Long, Recording> read(MappedByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getLong(MAGIC_OFFSET) != MAGIC) {
+            throw new IllegalArgumentException("Not a trace file");
+        }
+        final int blockSize = buffer.getInt(BLOCK_SIZE_OFFSET);
+        final int blockCount = buffer.getInt(BLOCK_COUNT_OFFSET);
+        final int recordsPerBlock = recordsPerBlock(blockSize);
+
+        // collect the blocks in the order they were claimed
+        final TreeMap<Long, Integer> blocks = new TreeMap<>();
+        for (int i = 0; i < blockCount; i++) {
+            final int block = HEADER_SIZE + i * blockSize;
+            final long seq = buffer.getLong(block + BLOCK_SEQ_OFFSET);
+            if (seq != 0) {
+                blocks.put(seq, block);
+            }
+        }
+
+        final Map<Long, List<Integer>> blocksByThread = new HashMap<>();
+        for (int block : blocks.values()) {
+            final long key = buffer.getLong(block + BLOCK_KEY_OFFSET);
+            List<Integer> list = blocksByThread.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                blocksByThread.put(key, list);
+            }
+            list.add(block);
+        }
+
+        final Map<Long, Recording> recordings = new HashMap<>();
+        for (Map.Entry<Long, List<Integer>> e : blocksByThread.entrySet()) {
+            int total = 0;
+            for (int block : e.getValue()) {
+                total += Math.min(buffer.getInt(block + BLOCK_COUNT_OFFSET_IN_BLOCK), recordsPerBlock);
+            }
+            final long[] kinds = new long[total];
+            final long[] values = new long[total];
+            int n = 0;
+            for (int block : e.getValue()) {
+                final int count = Math.min(buffer.getInt(block + BLOCK_COUNT_OFFSET_IN_BLOCK), recordsPerBlock);
+                for (int i = 0; i < count; i++, n++) {
+                    final int at = block + BLOCK_HEADER_SIZE + i * RECORD_SIZE;
+                    kinds[n] = buffer.getLong(at);
+                    values[n] = buffer.getLong(at + 8);
+                }
+            }
+            recordings.put(e.getKey(), new Recording(kinds, values));
+        }
+        return recordings;
+    }
+
+    /**
+     * A thread's recording, and its position in it. Only accessed by its thread.
+     */
+    private static final class Recording {
+        private final long[] kinds;
+        private final long[] values;
+        private int position;
+        private boolean done;
+        long value;
+
+        Recording(long[] kinds, long[] values) {
+            this.kinds = kinds;
+            this.values = values;
+        }
+
+        /**
+         * Moves to the next record, if it is of the given kind, and sets {@link #value} to its value.
+         *
+         * @return {@code true} if the next record is of the given kind; {@code false} once the replay has ended for this thread
+         */
+        boolean next(long kind) {
+            if (done) {
+                return false;
+            }
+            if (position < kinds.length && kinds[position] == kind) {
+                value = values[position++];
+                return true;
+            }
+            done = true;
+            if (position < kinds.length) {
+                Logger.warning("Thread %s diverged from its recording at record %d; it now uses the source clock", Thread.currentThread().getName(), position);
+            } else {
+                Logger.info("Thread %s has no more recorded times; it now uses the source clock", Thread.currentThread().getName());
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.replay;
+
+import java.util.*;
+
+/**
+ * The layout of the trace file written by {@link RecordingClock} and read by {@link ReplayClock}.
+ * <p>
+ * The file starts with a {@value #HEADER_SIZE}-byte header, followed by a ring of fixed-size blocks.
+ * Each block belongs to a single thread, which fills it without synchronizing with other threads; a thread claims
+ * a new block, overwriting the oldest one no other thread is still writing into, once its current block is full.
+ * A block starts with a header holding its sequence number (counting from 1; 0 marks an unused block), its thread's key
+ * and the number of records in it, followed by 16-byte records, each made of a kind and a value.
+ * <p>
+ * Threads are identified across runs by their name, and the number of threads with the same name seen before them.
+ *
+ * @author pron
+ */
+final class TraceFormat {
+    static final long MAGIC = 0x5457_5452_4143_4531L; // "TWTRACE1"
+
+    static final int HEADER_SIZE = 4096;
+    static final int MAGIC_OFFSET = 0;
+    static final int BLOCK_SIZE_OFFSET = 8;
+    static final int BLOCK_COUNT_OFFSET = 12;
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    static final int BLOCK_HEADER_SIZE = 32;
+    static final int BLOCK_SEQ_OFFSET = 0;
+    static final int BLOCK_KEY_OFFSET = 8;
+    static final int BLOCK_COUNT_OFFSET_IN_BLOCK = 16;
+    static final int RECORD_SIZE = 16;
+
+    // record kinds
+    static final long CURRENT_TIME_MILLIS = 1;
+    static final long NANO_TIME = 2;
+    static final long START_TIME = 3;
+    static final long SLEEP = 4; // value: the nanoseconds actually slept
+    static final long WAIT = 5;  // value: the nanoseconds actually waited
+    static final long PARK = 6;  // value: the nanoseconds actually parked
+    static final long CURRENT_TIME_NANOS = 7;
+    static final long SELECT = 8; // value: the nanoseconds actually selected for
+
+    private TraceFormat() {
+    }
+
+    static int recordsPerBlock(int blockSize) {
+        return (blockSize - BLOCK_HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    static long blockOffset(long seq, int blockSize, int blockCount) {
+        return HEADER_SIZE + ((seq - 1) % blockCount) * (long) blockSize;
+    }
+
+    /**
+     * Assigns threads their key: the hash of their name, and the number of threads with the same name that came before.
+     */
+    static final class ThreadKeys {
+        private final Map<String, Integer> occurrences = new HashMap<>();
+
+        synchronized long next(Thread thread) {
+            final String name = thread.getName();
+            Integer n = occurrences.get(name);
+            n = n == null ? 0 : n + 1;
+            occurrences.put(name, n);
+            return ((long) n << 32) | (name.hashCode() & 0xffff_ffffL);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import co.paralleluniverse.vtime.ClockStats;
+import co.paralleluniverse.vtime.ClockStatsMXBean;
+import co.paralleluniverse.vtime.VirtualClock;
+import co.paralleluniverse.vtime.clock.manual.DeterministicClock;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Runs programs in a JVM started with the agent, whose JAR is given by the {@value #AGENT_PROPERTY} system property;
+ * skipped if it isn't set. Each program prints its results on its last line.
+ * <p>
+ * The programs are outside of the agent's own packages, which it doesn't transform.
+ *
+ * @author pron
+ */
+public class AgentTest {
+    static final String AGENT_PROPERTY = "co.paralleluniverse.vtime.agent";
+
+    @Test
+    public void scaledParkNanosIsScaledOnce() throws Exception {
+        // on Java 8, LockSupport parks through sun.misc.Unsafe, whose calls are captured, too
+        final long millis = Long.parseLong(run("scaled=10", ParkNanos.class));
+        assertTrue("parked for " + millis + "ms of virtual time", millis >= 90 && millis < 1_000);
+    }
+
+    public static final class ParkNanos {
+        public static void main(String[] args) {
+            LockSupport.parkNanos(1_000_000); // warm up
+            final long start = System.nanoTime();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            System.out.println(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @Test
+    public void deterministicClockRunsTheJdksBlockingOperations() throws Exception {
+        // on Java 8, parks by the clock itself, or by its watchdog, once went back to the clock, which parked again;
+        // on Java 21, the Cleaner's timed waits, which go through LockSupport, once took part and ran the time ahead
+        assertEquals("210", run("deterministic=0:1", Blocking.class));
+    }
+
+    public static final class Blocking {
+        public static void main(String[] args) throws Exception {
+            final DeterministicClock clock = (DeterministicClock) VirtualClock.get();
+            clock.enter(); // so that the time doesn't move on with the other thread alone
+            final Thread t = clock.threadFactory().newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            t.start();
+            final long start = System.nanoTime();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            Thread.sleep(10);
+            new CountDownLatch(1).await(100, TimeUnit.MILLISECONDS);
+            t.join();
+            System.out.println(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @Test
+    public void notifyIsOnlyCapturedForTheDeterministicClock() throws Exception {
+        assertEquals("0", run("stats,scaled=1", Notify.class));
+        assertNotEquals("0", run("stats,deterministic=0", Notify.class));
+    }
+
+    public static final class Notify {
+        public static void main(String[] args) throws Exception {
+            final Object lock = new Object();
+            synchronized (lock) {
+                lock.notify();
+                lock.notifyAll();
+            }
+            final ClockStatsMXBean stats = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                    new ObjectName(ClockStats.OBJECT_NAME), ClockStatsMXBean.class);
+            System.out.println(stats.getCalls().get("Object_notify") + stats.getCalls().get("Object_notifyAll"));
+        }
+    }
+
+    /**
+     * Runs the given class's {@code main} in a JVM with the agent, configured with the given arguments.
+     *
+     * @return the last line of its output
+     */
+    static String run(String agentArguments, Class<?> main) throws IOException, InterruptedException {
+        final String agent = System.getProperty(AGENT_PROPERTY);
+        assumeNotNull(agent);
+        final File log = File.createTempFile(main.getSimpleName(), ".log");
+        final Process p = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-Xbootclasspath/a:" + agent,
+                "-javaagent:" + agent + "=" + agentArguments,
+                "-cp", System.getProperty("java.class.path"),
+                main.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        final boolean exited = p.waitFor(1, TimeUnit.MINUTES);
+        if (!exited) {
+            p.destroyForcibly().waitFor();
+        }
+        final String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+        log.delete();
+        assertTrue(main.getSimpleName() + " timed out:\n" + output, exited);
+        assertEquals(main.getSimpleName() + " failed:\n" + output, 0, p.exitValue());
+        final String[] lines = output.trim().split("\\r?\\n");
+        return lines[lines.length - 1];
+    }
+}
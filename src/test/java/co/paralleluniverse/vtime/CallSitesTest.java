@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2015-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class CallSitesTest {
+    @Test
+    public void retransformedCallSiteKeepsItsId() {
+        final int site = CallSites.register("foo/Bar", "run", "()V", 12, 0);
+        assertEquals(site, CallSites.register("foo/Bar", "run", "()V", 12, 0));
+        assertNotEquals(site, CallSites.register("foo/Bar", "run", "()V", 12, 1));
+        assertNotEquals(site, CallSites.register("foo/Bar", "run", "(J)V", 12, 0));
+
+        CallSites.call(site, 1_000_000_000L);
+        CallSites.call(CallSites.register("foo/Bar", "run", "()V", 12, 0), 500_000_000L);
+        final String report = CallSites.report(10);
+        assertTrue(report, report.contains("1.500            2  foo.Bar.run:12"));
+        assertEquals(report, report.indexOf("foo.Bar.run:12"), report.lastIndexOf("foo.Bar.run:12"));
+    }
+}
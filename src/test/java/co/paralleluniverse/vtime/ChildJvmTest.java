@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class ChildJvmTest {
+    private static final String JAR = new File("no-such-agent.jar").getAbsolutePath();
+
+    @Before
+    public void setUp() {
+        // as the agent enables it when given propagate,stats: stats are kept to the parent
+        ChildJvm.enable(JAR, Arrays.asList("propagate"));
+    }
+
+    @After
+    public void tearDown() {
+        ChildJvm.enable(null, Collections.<String>emptyList());
+    }
+
+    @Test
+    public void javaIsRecognizedByItsFileName() {
+        assertTrue(ChildJvm.isJava(Arrays.asList("java", "-version")));
+        assertTrue(ChildJvm.isJava(Arrays.asList("/usr/lib/jvm/bin/java", "-jar", "app.jar")));
+        assertTrue(ChildJvm.isJava(Arrays.asList("C:\\jdk\\bin\\java.exe".replace('\\', File.separatorChar), "Main")));
+        assertFalse(ChildJvm.isJava(Arrays.asList("javac", "Main.java")));
+        assertFalse(ChildJvm.isJava(Arrays.asList("/bin/sh", "-c", "java Main")));
+        assertFalse(ChildJvm.isJava(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void javaAlreadyStartedWithTheAgentIsLeftAlone() {
+        assertFalse(ChildJvm.isJava(Arrays.asList("java", "-javaagent:" + JAR + "=scaled=2", "Main")));
+        assertTrue(ChildJvm.isJava(Arrays.asList("java", "-javaagent:other.jar", "Main")));
+    }
+
+    @Test
+    public void agentComesBeforeTheCommandsArguments() {
+        final List<String> cmd = ChildJvm.withAgent(Arrays.asList("java", "-Xmx1g", "Main", "arg"));
+        assertEquals(6, cmd.size());
+        assertEquals("java", cmd.get(0));
+        assertEquals("-Xbootclasspath/a:" + JAR, cmd.get(1));
+        assertTrue(cmd.get(2), cmd.get(2).startsWith("-javaagent:" + JAR + "=propagate,offset="));
+        assertEquals(Arrays.asList("-Xmx1g", "Main", "arg"), cmd.subList(3, 6));
+    }
+
+    @Test
+    public void builderKeepsItsCommand() throws Exception {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final List<String> command = Arrays.asList(java, "-version");
+        final ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        final Process p = ChildJvm.start(builder); // fails to find the agent, but starts
+        assertTrue(p.waitFor(1, TimeUnit.MINUTES));
+        assertSame(command, builder.command());
+        assertEquals(Arrays.asList(java, "-version"), builder.command());
+    }
+}
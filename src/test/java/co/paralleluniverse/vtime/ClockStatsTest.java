@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The counters are static, and so are checked by how much they go up.
+ *
+ * @author pron
+ */
+public class ClockStatsTest {
+    private final ClockStats stats = new ClockStats();
+
+    @Test
+    public void callsAndRequestedTimeAreCounted() {
+        final Map<String, Long> calls = stats.getCalls();
+        final long sleep = stats.getRequestedSleepNanos();
+        final long await = stats.getRequestedWaitNanos();
+        final long park = stats.getRequestedParkNanos();
+
+        ClockStats.call(ClockStats.SYSTEM_NANO_TIME);
+        ClockStats.call(ClockStats.SYSTEM_NANO_TIME);
+        ClockStats.sleep(TimeUnit.MILLISECONDS.toNanos(5));
+        ClockStats.sleep(0);
+        ClockStats.await(0); // untimed
+        ClockStats.await(1_000);
+        ClockStats.park(ClockStats.LOCK_SUPPORT_PARK_NANOS, false, 2_000);
+        ClockStats.park(ClockStats.LOCK_SUPPORT_PARK_UNTIL, true, VirtualClock.get().System_currentTimeMillis() - 1); // in the past
+
+        final Map<String, Long> calls1 = stats.getCalls();
+        assertEquals(2, calls1.get("System_nanoTime") - calls.get("System_nanoTime"));
+        assertEquals(2, calls1.get("Thread_sleep") - calls.get("Thread_sleep"));
+        assertEquals(2, calls1.get("Object_wait") - calls.get("Object_wait"));
+        assertEquals(1, calls1.get("LockSupport_parkNanos") - calls.get("LockSupport_parkNanos"));
+        assertEquals(1, calls1.get("LockSupport_parkUntil") - calls.get("LockSupport_parkUntil"));
+        assertEquals(calls.get("System_currentTimeMillis"), calls1.get("System_currentTimeMillis"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), stats.getRequestedSleepNanos() - sleep);
+        assertEquals(1_000, stats.getRequestedWaitNanos() - await);
+        assertEquals(2_000, stats.getRequestedParkNanos() - park);
+    }
+
+    @Test
+    public void countersAreWrittenInPrometheusTextFormat() throws Exception {
+        ClockStats.call(ClockStats.SYSTEM_CURRENT_TIME_MILLIS);
+        ClockStats.sleep(TimeUnit.MILLISECONDS.toNanos(1_500));
+        final Path dir = Files.createTempDirectory("clock-stats");
+        final Path file = dir.resolve("stats.prom");
+        try {
+            stats.write(file);
+            final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            final Map<String, Long> calls = stats.getCalls();
+
+            assertEquals("# HELP timewarp_calls_total Calls to time methods replaced by the timewarp agent.", lines.get(0));
+            assertEquals("# TYPE timewarp_calls_total counter", lines.get(1));
+            int i = 2;
+            for (Map.Entry<String, Long> e : calls.entrySet()) {
+                assertEquals("timewarp_calls_total{method=\"" + e.getKey() + "\"} " + e.getValue(), lines.get(i++));
+            }
+            assertEquals("# HELP timewarp_requested_seconds_total Virtual time requested by timed sleeps, waits and parks.", lines.get(i++));
+            assertEquals("# TYPE timewarp_requested_seconds_total counter", lines.get(i++));
+            assertEquals("timewarp_requested_seconds_total{kind=\"sleep\"} " + stats.getRequestedSleepNanos() / 1e9, lines.get(i++));
+            assertEquals("timewarp_requested_seconds_total{kind=\"wait\"} " + stats.getRequestedWaitNanos() / 1e9, lines.get(i++));
+            assertEquals("timewarp_requested_seconds_total{kind=\"park\"} " + stats.getRequestedParkNanos() / 1e9, lines.get(i++));
+            assertEquals(i, lines.size());
+            assertTrue(calls.get("System_currentTimeMillis") >= 1);
+            assertTrue(stats.getRequestedSleepNanos() >= TimeUnit.MILLISECONDS.toNanos(1_500));
+
+            // rewritten in place, with no temporary file left behind
+            ClockStats.call(ClockStats.SYSTEM_CURRENT_TIME_MILLIS);
+            stats.write(file);
+            assertTrue(Files.readAllLines(file, StandardCharsets.UTF_8)
+                    .contains("timewarp_calls_total{method=\"System_currentTimeMillis\"} " + (calls.get("System_currentTimeMillis") + 1)));
+            assertEquals(Collections.singletonList(file), list(dir));
+        } finally {
+            for (Path p : list(dir)) {
+                Files.delete(p);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static List<Path> list(Path dir) throws Exception {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                paths.add(p);
+            }
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.lang.management.RuntimeMXBean;
+import java.time.Duration;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class ClockTest {
+    /**
+     * A clock implementing only the operations of the first release, which records the calls made to it.
+     */
+    private static final class OriginalClock implements Clock {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public long System_currentTimeMillis() {
+            return 1_234;
+        }
+
+        @Override
+        public long System_nanoTime() {
+            return 0;
+        }
+
+        @Override
+        public long RuntimeMXBean_getStartTime(RuntimeMXBean runtimeMXBean) {
+            return 0;
+        }
+
+        @Override
+        public void Object_wait(Object obj, long timeout) {
+            calls.add("wait " + timeout);
+        }
+
+        @Override
+        public void Object_wait(Object obj, long timeout, int nanos) {
+            calls.add("wait " + timeout + " " + nanos);
+        }
+
+        @Override
+        public void Thread_sleep(long millis) {
+            calls.add("sleep " + millis);
+        }
+
+        @Override
+        public void Thread_sleep(long millis, int nanos) {
+            calls.add("sleep " + millis + " " + nanos);
+        }
+
+        @Override
+        public void Unsafe_park(sun.misc.Unsafe unsafe, boolean isAbsolute, long timeout) {
+            assertNotNull(unsafe);
+            calls.add("park " + isAbsolute + " " + timeout);
+        }
+
+        @Override
+        public void afterGlobalClockSetup() {
+        }
+    }
+
+    private final OriginalClock clock = new OriginalClock();
+
+    @Test
+    public void currentTimeNanosDefaultsToMillis() {
+        assertEquals(1_234_000_000L, clock.System_currentTimeNanos());
+    }
+
+    @Test
+    public void sleepForDurationDefaultsToSleepForMillisAndNanos() throws Exception {
+        clock.Thread_sleep(Duration.ofMillis(1_500).plusNanos(7));
+        clock.Thread_sleep(Duration.ZERO);
+        clock.Thread_sleep(Duration.ofMillis(-1));
+        assertEquals(Arrays.asList("sleep 1500 7", "sleep 0 0"), clock.calls);
+    }
+
+    @Test
+    public void lockSupportParkDefaultsToUnsafePark() {
+        clock.LockSupport_park(this, false, 10);
+        clock.LockSupport_park(this, true, 20);
+        clock.LockSupport_park(this, false, 0);
+        clock.LockSupport_park(this, false, -1);
+        assertEquals(Arrays.asList("park false 10", "park true 20"), clock.calls);
+    }
+
+    @Test
+    public void socketTimeoutDefaultsToUnchanged() {
+        assertEquals(250, clock.Socket_soTimeout(250));
+        assertEquals(0, clock.Socket_soTimeout(0));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class VirtualClockTest {
+    @Test
+    public void installedScopesNest() {
+        final Clock global = VirtualClock.get();
+        final ManualClock outer = new ManualClock(1_000);
+        final ManualClock inner = new ManualClock(2_000);
+        try (VirtualClock.Scope o = VirtualClock.install(outer)) {
+            assertSame(outer, VirtualClock.get());
+            try (VirtualClock.Scope i = VirtualClock.install(inner)) {
+                assertSame(inner, VirtualClock.get());
+                assertSame(inner, i.clock());
+            }
+            assertSame(outer, VirtualClock.get());
+        }
+        assertSame(global, VirtualClock.get());
+    }
+
+    @Test
+    public void closingOuterScopeLeavesInnerInEffect() {
+        final Clock global = VirtualClock.get();
+        final ManualClock outer = new ManualClock(1_000);
+        final ManualClock inner = new ManualClock(2_000);
+        final VirtualClock.Scope o = VirtualClock.install(outer);
+        final VirtualClock.Scope i = VirtualClock.install(inner);
+        o.close();
+        assertSame(inner, VirtualClock.get());
+        o.close(); // no effect
+        assertSame(inner, VirtualClock.get());
+        i.close();
+        assertSame(global, VirtualClock.get());
+    }
+
+    @Test
+    public void eventTimeScopesNestAndRestoreTheTime() throws Exception {
+        final ManualClock clock = new ManualClock(1_000);
+        try (VirtualClock.Scope s = VirtualClock.install(clock)) {
+            assertSame(clock, s.clock());
+            VirtualClock.runAt(5_000, new Runnable() {
+                @Override
+                public void run() {
+                    assertEquals(5_000, VirtualClock.get().System_currentTimeMillis());
+                    clock.advance(1, TimeUnit.SECONDS);
+                    assertEquals(6_000, VirtualClock.get().System_currentTimeMillis());
+                    try {
+                        assertEquals(Long.valueOf(9_000), VirtualClock.callAt(9_000, new Callable<Long>() {
+                            @Override
+                            public Long call() {
+                                return VirtualClock.get().System_currentTimeMillis();
+                            }
+                        }));
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                    assertEquals(6_000, VirtualClock.get().System_currentTimeMillis());
+                }
+            });
+            assertEquals(2_000, VirtualClock.get().System_currentTimeMillis());
+        }
+    }
+
+    @Test
+    public void runAtRethrowsTheTasksException() {
+        final IllegalStateException thrown = new IllegalStateException();
+        try {
+            VirtualClock.runAt(5_000, new Runnable() {
+                @Override
+                public void run() {
+                    throw thrown;
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(thrown, e);
+        }
+        assertTrue(Math.abs(VirtualClock.get().System_currentTimeMillis() - System.currentTimeMillis()) < 1_000);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullClockIsRejected() {
+        VirtualClock.install(null);
+    }
+}
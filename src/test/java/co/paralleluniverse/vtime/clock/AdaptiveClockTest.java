@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the controller the sleeps of a period, as it measures them.
+ *
+ * @author pron
+ */
+public class AdaptiveClockTest {
+    private static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final AdaptiveClock clock = new AdaptiveClock(SystemClock.instance(), 1, 16);
+
+    @Test
+    public void scaleIsRaisedWhileTheThreadsKeepUp() {
+        assertEquals(1, clock.getScale(), 0);
+        clock.update(PERIOD, PERIOD, 0.1);
+        assertEquals(2, clock.getScale(), 0);
+        for (int i = 0; i < 5; i++) {
+            clock.update(PERIOD, PERIOD, 0.1);
+        }
+        assertEquals(16, clock.getScale(), 0);
+        assertEquals(16, clock.getAchievedScale(), 0);
+    }
+
+    @Test
+    public void lateWakeupsLowerTheScale() {
+        raiseTo(16);
+        clock.update(PERIOD / 2, PERIOD, 0.1); // sleeps took twice what they asked for
+        assertEquals(8, clock.getScale(), 0);
+        assertEquals(8, clock.getAchievedScale(), 1e-9);
+
+        clock.update(PERIOD * 9 / 10, PERIOD, 0.1); // 10% late, twice the target
+        assertEquals(8 / Math.sqrt(2), clock.getScale(), 1e-9);
+        assertEquals(8 * 0.9, clock.getAchievedScale(), 1e-9);
+
+        for (int i = 0; i < 10; i++) {
+            clock.update(PERIOD / 2, PERIOD, 0.1);
+        }
+        assertEquals(1, clock.getScale(), 0);
+    }
+
+    @Test
+    public void busyProcessorsLowerTheScale() {
+        raiseTo(16);
+        clock.update(PERIOD, PERIOD, 1.8);
+        assertEquals(16 / Math.sqrt(2), clock.getScale(), 1e-9);
+    }
+
+    private void raiseTo(double scale) {
+        while (clock.getScale() < scale) {
+            clock.update(0, 0, 0);
+        }
+        assertEquals(scale, clock.getScale(), 0);
+    }
+}
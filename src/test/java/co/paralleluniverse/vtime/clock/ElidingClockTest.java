@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Elides timeouts over a {@link ManualClock} standing still, so that all the time that passes is elided.
+ *
+ * @author pron
+ */
+public class ElidingClockTest {
+    private static final long START = 1_000_000;
+
+    private final ManualClock source = new ManualClock(START);
+    private final ElidingClock clock = new ElidingClock(source, 0);
+
+    @Test(timeout = 10_000)
+    public void elidedSleepsMoveTheTimeForward() throws Exception {
+        final long nanos = clock.System_nanoTime();
+        clock.Thread_sleep(TimeUnit.HOURS.toMillis(1));
+        clock.Thread_sleep(1, 500_000);
+        clock.Thread_sleep(Duration.ofNanos(500_000));
+        final long elided = TimeUnit.HOURS.toNanos(1) + TimeUnit.MILLISECONDS.toNanos(2);
+        assertEquals(elided, clock.System_nanoTime() - nanos);
+        assertEquals(START + TimeUnit.NANOSECONDS.toMillis(elided), clock.System_currentTimeMillis());
+        assertEquals(elided, clock.elidedNanos());
+        assertEquals(nanos, source.System_nanoTime());
+    }
+
+    @Test(timeout = 10_000)
+    public void timedOutParksMoveTheTimeForward() {
+        clock.LockSupport_park(null, false, TimeUnit.SECONDS.toNanos(10));
+        clock.LockSupport_park(null, true, clock.System_currentTimeMillis() + 5_000);
+        assertEquals(START + 15_000, clock.System_currentTimeMillis());
+    }
+
+    @Test(timeout = 10_000)
+    public void threadsSleepsDontAddUp() throws Exception {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clock.Thread_sleep(100);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        t.start();
+        t.join();
+        clock.Thread_sleep(100);
+        assertEquals(START + 100, clock.System_currentTimeMillis());
+
+        // once read, the time elided by a thread is seen by all, and others' sleeps start from it
+        final Thread u = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clock.Thread_sleep(1_000);
+                    clock.System_nanoTime();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        u.start();
+        u.join();
+        assertEquals(START + 1_100, clock.System_currentTimeMillis());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1_100), clock.elidedNanos());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.TimeUnit;
+import co.paralleluniverse.vtime.Clock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times out blocking loopback socket operations whose {@code SO_TIMEOUT} is set through a clock.
+ *
+ * @author pron
+ */
+public final class Loopback {
+    private Loopback() {
+    }
+
+    /**
+     * @return the real milliseconds an {@code accept} with the given timeout, in the clock's milliseconds, took to time out
+     */
+    public static long acceptTimeout(Clock clock, int timeout) throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(clock.Socket_soTimeout(timeout));
+            final long start = System.nanoTime();
+            try {
+                server.accept().close();
+                fail("accept returned");
+            } catch (SocketTimeoutException e) {
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the real milliseconds a {@code Socket} read with the given timeout, in the clock's milliseconds, took to time out
+     */
+    public static long readTimeout(Clock clock, int timeout) throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            client.setSoTimeout(clock.Socket_soTimeout(timeout));
+            final long start = System.nanoTime();
+            try {
+                client.getInputStream().read();
+                fail("read returned");
+            } catch (SocketTimeoutException e) {
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the real milliseconds a {@code DatagramSocket} receive with the given timeout, in the clock's milliseconds, took to time out
+     */
+    public static long receiveTimeout(Clock clock, int timeout) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            socket.setSoTimeout(clock.Socket_soTimeout(timeout));
+            final long start = System.nanoTime();
+            try {
+                socket.receive(new DatagramPacket(new byte[1], 1));
+                fail("receive returned");
+            } catch (SocketTimeoutException e) {
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reports pauses to a {@link PauseCompensatedClock} directly, over a {@link ManualClock} standing for the system's time.
+ *
+ * @author pron
+ */
+public class PauseCompensatedClockTest {
+    private static final long START = 1_000_000;
+
+    private final ManualClock source = new ManualClock(START);
+    private final PauseCompensatedClock clock = new PauseCompensatedClock(source, false);
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    @After
+    public void rethrow() throws Throwable {
+        source.reset();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Test
+    public void timeStandsStillForThePauseThenResumesLessThePause() {
+        source.advance(1, TimeUnit.SECONDS);
+        clock.pause(TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), clock.getPausedNanos());
+        final long nanos = clock.System_nanoTime();
+        final long millis = clock.System_currentTimeMillis();
+        final long timeNanos = clock.System_currentTimeNanos();
+        assertTrue(nanos >= TimeUnit.SECONDS.toNanos(1));
+
+        source.advance(150, TimeUnit.MILLISECONDS);
+        assertEquals(nanos, clock.System_nanoTime());
+        assertEquals(millis, clock.System_currentTimeMillis());
+        assertEquals(timeNanos, clock.System_currentTimeNanos());
+
+        source.advance(100, TimeUnit.MILLISECONDS);
+        assertEquals(source.System_nanoTime() - TimeUnit.MILLISECONDS.toNanos(200), clock.System_nanoTime());
+        assertEquals(source.System_currentTimeMillis() - 200, clock.System_currentTimeMillis());
+        assertEquals(source.System_currentTimeNanos() - TimeUnit.MILLISECONDS.toNanos(200), clock.System_currentTimeNanos());
+    }
+
+    @Test(timeout = 10_000)
+    public void sleepGoesOnUntilTheClockReachesItsDeadline() throws Exception {
+        clock.pause(TimeUnit.MILLISECONDS.toNanos(200));
+        final Thread t = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clock.Thread_sleep(100);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        // the clock stands still for 200ms of the source's time, and only then moves on to the sleep's deadline
+        source.advanceAndSettle(300, TimeUnit.MILLISECONDS, 5, TimeUnit.SECONDS);
+        assertTrue(t.isAlive());
+        source.advance(1, TimeUnit.MILLISECONDS);
+        t.join();
+    }
+
+    @Test(timeout = 10_000)
+    public void absoluteParkDeadlineIsConvertedToTheSourcesTime() throws Exception {
+        clock.pause(TimeUnit.MILLISECONDS.toNanos(200));
+        source.advance(300, TimeUnit.MILLISECONDS);
+        final long deadline = clock.System_currentTimeMillis() + 100;
+        assertEquals(START + 200, deadline);
+        final Thread t = start(new Runnable() {
+            @Override
+            public void run() {
+                clock.LockSupport_park(null, true, deadline);
+            }
+        });
+        source.advance(50, TimeUnit.MILLISECONDS); // past the deadline, in the source's time
+        t.join(100);
+        assertTrue(t.isAlive());
+        source.advance(50, TimeUnit.MILLISECONDS);
+        t.join();
+        assertEquals(deadline, clock.System_currentTimeMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPausesAreRejected() {
+        PauseCompensatedClock.create(source, "jit");
+    }
+
+    /**
+     * Starts a thread, and waits until it blocks.
+     */
+    private Thread start(final Runnable task) throws InterruptedException {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+        t.start();
+        while (t.isAlive() && t.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class ScaledClockTest {
+    private final ScaledClock clock = new ScaledClock(SystemClock.instance(), 10);
+
+    @Test(timeout = 10_000)
+    public void selectTimeoutIsScaled() throws Exception {
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            final long start = System.nanoTime();
+            assertEquals(0, clock.Selector_select(selector, 2_000));
+            assertBetween(190, 1_000, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void socketTimeoutsAreScaled() throws Exception {
+        assertEquals(200, clock.Socket_soTimeout(2_000));
+        assertEquals(1, clock.Socket_soTimeout(1)); // rounded up, as 0 would mean no timeout
+        assertEquals(0, clock.Socket_soTimeout(0));
+        assertBetween(190, 1_000, Loopback.acceptTimeout(clock, 2_000));
+        assertBetween(190, 1_000, Loopback.readTimeout(clock, 2_000));
+        assertBetween(190, 1_000, Loopback.receiveTimeout(clock, 2_000));
+    }
+
+    @Test(timeout = 60_000)
+    public void tinySleepsAddUpToTheTimeTheyAskedFor() throws Exception {
+        // at scale 1000 a 1ms sleep is 1us of real time, which the OS oversleeps many times over:
+        // slept one by one, 2000 of them would take minutes of virtual time rather than 2 seconds
+        for (ScaledClock c : Arrays.asList(new ScaledClock(SystemClock.instance(), 1_000), new ScaledClock(SystemClock.instance(), 1_000, 0, 0))) {
+            sleep(c, 2_000); // warm up
+            final long start = c.System_nanoTime();
+            sleep(c, 2_000);
+            assertBetween(2_000, 20_000, TimeUnit.NANOSECONDS.toMillis(c.System_nanoTime() - start));
+        }
+    }
+
+    private static void sleep(ScaledClock c, int times) throws InterruptedException {
+        for (int i = 0; i < times; i++) {
+            c.Thread_sleep(1);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void threadsBeyondMaxSpinnersSleep() throws Exception {
+        // over a manual clock, a spinning thread keeps running until the time is advanced, while a sleeping one waits
+        final ManualClock source = new ManualClock(0);
+        final ScaledClock c = new ScaledClock(source, 1, TimeUnit.SECONDS.toNanos(1), 2);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        c.Thread_sleep(100);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        while (count(threads, Thread.State.WAITING) < 3) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(3, count(threads, Thread.State.WAITING));
+        assertEquals(2, count(threads, Thread.State.RUNNABLE));
+
+        source.advance(100, TimeUnit.MILLISECONDS);
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private static int count(List<Thread> threads, Thread.State state) {
+        int n = 0;
+        for (Thread t : threads) {
+            if (t.getState() == state) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSpinIsRejected() {
+        new ScaledClock(SystemClock.instance(), 10, -1, 0);
+    }
+
+    static void assertBetween(long min, long max, long actual) {
+        assertTrue("expected between " + min + " and " + max + "; was " + actual, actual >= min && actual <= max);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import co.paralleluniverse.vtime.Clock;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@code skipAhead} of the {@link ScaledClock} and the {@link OffsetClock}.
+ *
+ * @author pron
+ */
+public class SkipAheadTest {
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @After
+    public void rethrow() throws Throwable {
+        for (Thread t : threads) {
+            t.interrupt();
+            t.join();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void scaledClockWakesWhatTheSkipTakesPastItsDeadline() throws Exception {
+        final ScaledClock clock = new ScaledClock(SystemClock.instance(), 1);
+        final long start = clock.System_currentTimeMillis();
+        startBlocking(clock, Duration.ofHours(2));
+
+        clock.skipAhead(Duration.ofHours(1));
+        assertStillBlocked();
+        clock.skipAhead(Duration.ofHours(1));
+        assertDone();
+        assertTrue(clock.System_currentTimeMillis() - start >= Duration.ofHours(2).toMillis());
+    }
+
+    @Test(timeout = 10_000)
+    public void offsetClockWakesWhatTheSkipTakesPastItsDeadline() throws Exception {
+        final OffsetClock clock = new OffsetClock(SystemClock.instance(), 0, null);
+        clock.skipAhead(Duration.ofMillis(1)); // waits are only registered from the first skip on
+        final long start = clock.System_nanoTime();
+        startBlocking(clock, Duration.ofHours(2));
+
+        clock.skipAhead(Duration.ofHours(1));
+        assertStillBlocked();
+        clock.skipAhead(Duration.ofHours(1));
+        assertDone();
+        assertTrue(clock.System_nanoTime() - start >= Duration.ofHours(2).toNanos());
+    }
+
+    @Test(timeout = 10_000)
+    public void offsetClockDoesntCutShortWaitsBegunBeforeItsFirstSkip() throws Exception {
+        final OffsetClock clock = new OffsetClock(SystemClock.instance(), 0, null);
+        start(new Blocking() {
+            @Override
+            public void block() throws InterruptedException {
+                clock.Thread_sleep(300);
+            }
+        });
+        while (threads.get(0).getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        clock.skipAhead(Duration.ofHours(1));
+        assertStillBlocked();
+        assertDone();
+    }
+
+    @Test(timeout = 10_000)
+    public void sleepStartedAfterTheSkipIsNotShortened() throws Exception {
+        final ScaledClock clock = new ScaledClock(SystemClock.instance(), 1);
+        clock.skipAhead(Duration.ofHours(1));
+        final long start = System.nanoTime();
+        clock.Thread_sleep(50);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 45);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scaledSkipMustBePositive() {
+        new ScaledClock(SystemClock.instance(), 1).skipAhead(Duration.ZERO);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offsetSkipMustBePositive() {
+        new OffsetClock(SystemClock.instance(), 0, null).skipAhead(Duration.ofMillis(-1));
+    }
+
+    /**
+     * Starts a thread sleeping, a thread waiting and a thread parking on the given clock for the given duration,
+     * and waits until they're blocked. Like any caller of wait and park, the latter two go on until the clock's
+     * time reaches their deadline, as they may return spuriously.
+     */
+    private void startBlocking(final Clock clock, final Duration duration) throws InterruptedException {
+        start(new Blocking() {
+            @Override
+            public void block() throws InterruptedException {
+                clock.Thread_sleep(duration.toMillis());
+            }
+        });
+        start(new Blocking() {
+            @Override
+            public void block() throws InterruptedException {
+                final Object lock = new Object();
+                final long deadline = clock.System_nanoTime() + duration.toNanos();
+                synchronized (lock) {
+                    for (long left; (left = deadline - clock.System_nanoTime()) > 0;) {
+                        clock.Object_wait(lock, Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                    }
+                }
+            }
+        });
+        start(new Blocking() {
+            @Override
+            public void block() {
+                final long deadline = clock.System_nanoTime() + duration.toNanos();
+                for (long left; (left = deadline - clock.System_nanoTime()) > 0;) {
+                    clock.LockSupport_park(null, false, left);
+                }
+            }
+        });
+        for (Thread t : threads) {
+            while (t.isAlive() && t.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+            assertTrue(t.getName() + " returned before the skip", t.isAlive());
+        }
+    }
+
+    private void start(final Blocking blocking) {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocking.block();
+                    assertFalse("left interrupted", Thread.currentThread().isInterrupted());
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+        t.start();
+        threads.add(t);
+    }
+
+    private void assertStillBlocked() throws InterruptedException {
+        Thread.sleep(100);
+        for (Thread t : threads) {
+            assertTrue(t.getName() + " woken too early", t.isAlive());
+        }
+    }
+
+    private void assertDone() throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(5_000);
+            assertFalse(t.isAlive());
+        }
+        threads.clear();
+    }
+
+    private interface Blocking {
+        void block() throws InterruptedException;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class DeterministicClockTest {
+    @Test(timeout = 30_000)
+    public void sameSeedSchedulesThreadsIdentically() throws Exception {
+        assertEquals(run(42), run(42));
+    }
+
+    /**
+     * Runs three threads which sleep and yield, and returns the order in which they ran, and the time at which they did.
+     */
+    private static List<String> run(long seed) throws Exception {
+        final DeterministicClock clock = new DeterministicClock(0, seed);
+        final List<String> trace = Collections.synchronizedList(new ArrayList<String>());
+        clock.enter();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int id = i;
+            threads.add(clock.threadFactory().newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            trace.add(id + "@" + clock.System_currentTimeMillis());
+                            clock.Thread_sleep(j % 2 == 0 ? 0 : id + 1);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(); // blocks outside the clock, so the watchdog passes the turn on
+        }
+        return new ArrayList<>(trace);
+    }
+
+    @Test(timeout = 10_000)
+    public void sleepAdvancesTimeWhenNoOneElseIsReady() throws Exception {
+        final DeterministicClock clock = new DeterministicClock(1_000, 0);
+        clock.Thread_sleep(10);
+        assertEquals(1_010, clock.System_currentTimeMillis());
+    }
+
+    @Test(timeout = 10_000)
+    public void jdksOwnThreadsDontTakePart() throws Exception {
+        final DeterministicClock clock = new DeterministicClock(0, 0);
+        ThreadGroup system = Thread.currentThread().getThreadGroup();
+        while (system.getParent() != null) {
+            system = system.getParent();
+        }
+        final long[] slept = new long[1];
+        final Thread t = new Thread(system, new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    clock.Thread_sleep(50); // like a Cleaner's timed wait
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                slept[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        });
+        t.start();
+        t.join();
+        assertTrue(slept[0] >= 50);
+        assertEquals(0, clock.System_nanoTime());
+    }
+
+    @Test(timeout = 10_000)
+    public void negativeRelativeParkReturnsAtOnce() {
+        final DeterministicClock clock = new DeterministicClock(0, 0);
+        clock.Unsafe_park(null, false, -1);
+        clock.LockSupport_park(null, false, -1);
+        assertEquals(0, clock.System_nanoTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSleepThrows() throws Exception {
+        new DeterministicClock(0, 0).Thread_sleep(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWaitThrows() throws Exception {
+        final Object lock = new Object();
+        synchronized (lock) {
+            new DeterministicClock(0, 0).Object_wait(lock, -1);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import co.paralleluniverse.vtime.clock.Loopback;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class ManualClockTest {
+    @Test(timeout = 60_000)
+    public void waiterReusedAcrossParksAndWaitsIsNeverLeftQueued() throws Throwable {
+        final ManualClock clock = new ManualClock(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Object lock = new Object();
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2_000; j++) {
+                            if (j % 2 == 0) {
+                                clock.LockSupport_park(null, false, 1_000);
+                            } else {
+                                synchronized (lock) {
+                                    clock.Object_wait(lock, 0, 1_000);
+                                }
+                            }
+                            assertFalse("left interrupted", Thread.currentThread().isInterrupted());
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        boolean alive = true;
+        while (alive) {
+            clock.advance(1, TimeUnit.MICROSECONDS);
+            alive = false;
+            for (Thread t : threads) {
+                LockSupport.unpark(t); // a spurious wakeup, after which the thread may re-arm its waiter before it's woken
+                alive |= t.isAlive();
+            }
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Test
+    public void sleepWakesUpOnceAdvancedPastItsDeadline() throws Exception {
+        final ManualClock clock = new ManualClock(1_000);
+        final Thread sleeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clock.Thread_sleep(10);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        sleeper.start();
+        awaitPending(clock, 1);
+        clock.advance(9, TimeUnit.MILLISECONDS);
+        assertTrue(sleeper.isAlive());
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        sleeper.join(10_000);
+        assertFalse(sleeper.isAlive());
+        assertEquals(1_010, clock.System_currentTimeMillis());
+    }
+
+    /**
+     * Waits until the given number of threads and tasks are waiting for the clock.
+     */
+    static void awaitPending(ManualClock clock, int n) throws InterruptedException {
+        while (clock.snapshot().pending().size() < n) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSleepThrows() throws Exception {
+        new ManualClock(0).Thread_sleep(-1);
+    }
+
+    @Test(timeout = 10_000)
+    public void resetReleasesWaitersAndCancelsTasks() throws Exception {
+        final ManualClock clock = new ManualClock(1_000);
+        final Thread sleeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clock.Thread_sleep(10_000);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        sleeper.start();
+        final ScheduledFuture<?> task = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fail("a cancelled task ran");
+            }
+        }, TimeUnit.SECONDS.toNanos(1));
+        awaitPending(clock, 2);
+        clock.advance(5, TimeUnit.MILLISECONDS);
+
+        clock.reset();
+        sleeper.join(10_000);
+        assertFalse(sleeper.isAlive());
+        assertTrue(task.isCancelled());
+        assertEquals(0, clock.System_nanoTime());
+        assertTrue(clock.snapshot().pending().isEmpty());
+        clock.advance(10, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 10_000)
+    public void selectTimesOutOnceAdvancedPastItsTimeout() throws Exception {
+        final ManualClock clock = new ManualClock(0);
+        try (Selector selector = Selector.open(); ServerSocketChannel server = listen(selector)) {
+            final AtomicInteger selected = new AtomicInteger(-1);
+            final Thread selecting = select(clock, selector, 1_000, selected);
+            awaitPending(clock, 1);
+            clock.advance(999, TimeUnit.MILLISECONDS);
+            selecting.join(100);
+            assertTrue(selecting.isAlive());
+            clock.advance(1, TimeUnit.MILLISECONDS);
+            selecting.join(10_000);
+            assertFalse(selecting.isAlive());
+            assertEquals(0, selected.get());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void selectReturnsOnIoWithoutAdvancing() throws Exception {
+        final ManualClock clock = new ManualClock(0);
+        try (Selector selector = Selector.open(); ServerSocketChannel server = listen(selector)) {
+            final AtomicInteger selected = new AtomicInteger(-1);
+            final Thread selecting = select(clock, selector, 1_000, selected);
+            awaitPending(clock, 1);
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort())) {
+                selecting.join(10_000);
+                assertFalse(selecting.isAlive());
+                assertEquals(1, selected.get());
+            }
+            assertEquals(0, clock.System_nanoTime());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void socketTimeoutsStayReal() throws Exception {
+        // advance can't wake up a thread blocked in a socket operation, so its timeout is left as is
+        final ManualClock clock = new ManualClock(0);
+        assertTrue(Loopback.acceptTimeout(clock, 200) >= 190);
+        assertTrue(Loopback.readTimeout(clock, 200) >= 190);
+        assertTrue(Loopback.receiveTimeout(clock, 200) >= 190);
+    }
+
+    static ServerSocketChannel listen(Selector selector) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        return server;
+    }
+
+    /**
+     * Starts a thread selecting on the given clock, which sets {@code selected} to the number of keys selected.
+     */
+    static Thread select(final ManualClock clock, final Selector selector, final long timeout, final AtomicInteger selected) {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    selected.set(clock.Selector_select(selector, timeout));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class ParallelClockTest {
+    private final ParallelClock clock = new ParallelClock(1_000, 4);
+
+    @Test(timeout = 10_000)
+    public void observerSleepWithoutProcessesMovesGlobalTime() throws Exception {
+        clock.Thread_sleep(10);
+        assertEquals(1_010, clock.System_currentTimeMillis());
+        clock.LockSupport_park(null, false, TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(1_015, clock.System_currentTimeMillis());
+        final Object lock = new Object();
+        synchronized (lock) {
+            clock.Object_wait(lock, 5);
+        }
+        assertEquals(1_020, clock.System_currentTimeMillis());
+    }
+
+    @Test(timeout = 10_000)
+    public void observerWakesUpOnceProcessesPassItsDeadline() throws Throwable {
+        final CountDownLatch registered = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread process = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (ParallelClock.LogicalProcess lp = clock.register(1, TimeUnit.MILLISECONDS)) {
+                    registered.countDown();
+                    Thread.sleep(50); // let the observer block
+                    clock.Thread_sleep(20);
+                    assertEquals(TimeUnit.MILLISECONDS.toNanos(20), lp.localNanos());
+                    Thread.sleep(50);
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        });
+        process.start();
+        registered.await();
+        clock.Thread_sleep(10);
+        assertTrue(clock.System_currentTimeMillis() >= 1_010);
+        process.join();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void closingLastProcessReleasesObservers() throws Throwable {
+        final CountDownLatch registered = new CountDownLatch(1);
+        final Thread process = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (ParallelClock.LogicalProcess lp = clock.register(1, TimeUnit.MILLISECONDS)) {
+                    registered.countDown();
+                    Thread.sleep(50); // let the observer block
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        process.start();
+        registered.await();
+        clock.Thread_sleep(100); // held back by the process, which never moves
+        assertEquals(1_100, clock.System_currentTimeMillis());
+        process.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lookaheadMustBePositive() {
+        clock.register(0, TimeUnit.MILLISECONDS);
+    }
+}
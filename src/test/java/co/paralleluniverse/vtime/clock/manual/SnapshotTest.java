@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+import static co.paralleluniverse.vtime.clock.manual.ManualClockTest.awaitPending;
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class SnapshotTest {
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final ManualClock clock = new ManualClock(1_000);
+
+    @Test
+    public void snapshotKeepsItsDeadlinesAfterTheClockMovesOn() {
+        final ScheduledFuture<?> late = clock.schedule(NOTHING, 20);
+        final ScheduledFuture<?> early = clock.schedule(NOTHING, 10);
+        final ManualClock.Snapshot before = clock.snapshot();
+        final ManualClock.Snapshot same = clock.snapshot();
+
+        clock.advance(15, TimeUnit.NANOSECONDS);
+        late.cancel(false);
+        clock.schedule(NOTHING, 30);
+
+        assertEquals(0, before.nanos());
+        assertEquals(1_000, before.startTime());
+        assertPending(before, 10, early, 20, late);
+        assertPending(same, 10, early, 20, late);
+        assertEquals(15, clock.snapshot().nanos());
+        assertEquals(1, clock.snapshot().pending().size());
+        assertEquals(30, clock.snapshot().pending().get(0).deadline());
+    }
+
+    @Test(timeout = 10_000)
+    public void snapshotReportsSleepingThreads() throws Exception {
+        final Thread sleeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clock.Thread_sleep(5);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        sleeper.start();
+        awaitPending(clock, 1);
+        final ManualClock.Snapshot snapshot = clock.snapshot();
+        clock.advance(5, TimeUnit.MILLISECONDS);
+        sleeper.join();
+        assertPending(snapshot, TimeUnit.MILLISECONDS.toNanos(5), sleeper);
+    }
+
+    @Test
+    public void branchStartsAtTheSnapshotsTimeWithNothingPending() {
+        clock.advance(7, TimeUnit.SECONDS);
+        clock.schedule(NOTHING, TimeUnit.SECONDS.toNanos(8));
+        final ManualClock.Snapshot snapshot = clock.snapshot();
+
+        final ManualClock branch = new ManualClock(snapshot);
+        assertEquals(clock.System_nanoTime(), branch.System_nanoTime());
+        assertEquals(clock.System_currentTimeMillis(), branch.System_currentTimeMillis());
+        assertTrue(branch.snapshot().pending().isEmpty());
+
+        branch.advance(1, TimeUnit.SECONDS);
+        assertEquals(TimeUnit.SECONDS.toNanos(7), clock.System_nanoTime());
+    }
+
+    /**
+     * Asserts the snapshot's pending deadlines, given as pairs of a deadline and its owner.
+     */
+    private static void assertPending(ManualClock.Snapshot snapshot, Object... deadlinesAndOwners) {
+        final List<ManualClock.Pending> pending = snapshot.pending();
+        assertEquals(deadlinesAndOwners.length / 2, pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            assertEquals(((Number) deadlinesAndOwners[2 * i]).longValue(), pending.get(i).deadline());
+            assertSame(deadlinesAndOwners[2 * i + 1], pending.get(i).owner());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.manual;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class WaiterTest {
+    private final DeadlineQueue queue = new DeadlineQueue();
+    private final Waiter waiter = new Waiter(Thread.currentThread());
+
+    @After
+    public void clearInterrupt() {
+        Thread.interrupted();
+    }
+
+    @Test
+    public void lateUnparkLeavesRearmedWaitAlone() {
+        waiter.arm(10, false);
+        queue.add(waiter);
+        waiter.queued();
+        assertSame(waiter, queue.pollDue(10));
+
+        // the parked thread wakes up spuriously, returns, and starts an Object.wait before the advancing thread wakes it up
+        assertFalse(waiter.cancel());
+        waiter.arm(20, true);
+        queue.add(waiter);
+        waiter.queued();
+
+        waiter.wakeup();
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertTrue(waiter.isWaiting());
+        assertTrue(waiter.cancel());
+        assertTrue(queue.remove(waiter));
+        queue.add(waiter); // would throw if the waiter had been left in the queue
+    }
+
+    @Test
+    public void claimedWaitIsInterruptedOnce() {
+        waiter.arm(10, true);
+        queue.add(waiter);
+        waiter.queued();
+        assertSame(waiter, queue.pollDue(10));
+        assertTrue(waiter.hasFired());
+
+        waiter.wakeup();
+        assertTrue(Thread.interrupted());
+        waiter.wakeup();
+        assertFalse(Thread.interrupted());
+        assertFalse(waiter.cancel());
+        waiter.consumeInterrupt();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.clock.replay;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static co.paralleluniverse.vtime.clock.replay.TraceFormat.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class RecordingClockTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void replaysEachThreadsRecordedTimes() throws Throwable {
+        final File trace = folder.newFile("trace");
+        final ManualClock source = new ManualClock(1_000);
+        final RecordingClock recording = new RecordingClock(source, trace, HEADER_SIZE + 4 * DEFAULT_BLOCK_SIZE);
+        final List<Long> recorded = run("worker", recording, 10, source);
+        recording.flush();
+
+        final ReplayClock replay = new ReplayClock(new ManualClock(0), trace);
+        assertEquals(recorded, run("worker", replay, 10, null));
+    }
+
+    @Test(timeout = 30_000)
+    public void wrappingRingSkipsBlockStillBeingWritten() throws Throwable {
+        final File trace = folder.newFile("trace");
+        final ManualClock source = new ManualClock(1_000);
+        final RecordingClock recording = new RecordingClock(source, trace, HEADER_SIZE + 2 * DEFAULT_BLOCK_SIZE);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch wrapped = new CountDownLatch(1);
+        final List<Long> slow = new ArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread slowThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    slow.add(recording.System_nanoTime());
+                    started.countDown();
+                    wrapped.await();
+                    slow.add(recording.System_nanoTime());
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        }, "slow");
+        slowThread.start();
+        started.await();
+        // fills many more blocks than the ring holds while the slow thread is still writing into its own
+        run("fast", recording, 3 * recordsPerBlock(DEFAULT_BLOCK_SIZE), source);
+        wrapped.countDown();
+        slowThread.join();
+        if (error.get() != null) {
+            throw error.get();
+        }
+
+        final ReplayClock replay = new ReplayClock(new ManualClock(0), trace);
+        assertEquals(slow, run("slow", replay, 2, null));
+    }
+
+    /**
+     * Reads the nano time the given number of times in a new thread with the given name, advancing the source clock in between.
+     */
+    private static List<Long> run(String name, final Clock clock, final int n, final ManualClock source) throws Throwable {
+        final List<Long> times = new ArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < n; i++) {
+                        times.add(clock.System_nanoTime());
+                        if (source != null) {
+                            source.advance(1, TimeUnit.MICROSECONDS);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        }, name);
+        t.start();
+        t.join();
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return times;
+    }
+}
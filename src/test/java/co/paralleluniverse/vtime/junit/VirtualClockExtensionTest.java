@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.junit;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.VirtualClock;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.Test;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the extension's callbacks as the JUnit 5 engine would, with an {@link ExtensionContext} that only has a store.
+ *
+ * @author pron
+ */
+public class VirtualClockExtensionTest {
+    private final ExtensionContext context = context();
+
+    @Test
+    public void givenClockIsInstalledForEachTestAndReset() {
+        final Clock outer = VirtualClock.get();
+        final ManualClock clock = new ManualClock(1_000);
+        final VirtualClockExtension extension = new VirtualClockExtension(clock);
+        for (int i = 0; i < 2; i++) {
+            extension.beforeEach(context);
+            assertSame(clock, VirtualClock.get());
+            assertEquals(0, clock.System_nanoTime());
+            clock.advance(1, TimeUnit.SECONDS);
+            extension.afterEach(context);
+            assertSame(outer, VirtualClock.get());
+        }
+    }
+
+    @Test
+    public void newManualClockIsInstalledForEachTest() {
+        final VirtualClockExtension extension = new VirtualClockExtension();
+        extension.beforeEach(context);
+        final Clock first = VirtualClock.get();
+        assertTrue(first instanceof ManualClock);
+        extension.afterEach(context);
+        extension.beforeEach(context);
+        assertNotSame(first, VirtualClock.get());
+        assertTrue(VirtualClock.get() instanceof ManualClock);
+        extension.afterEach(context);
+    }
+
+    /**
+     * @return an extension context whose namespaced stores are all the same map, and which supports nothing else
+     */
+    private static ExtensionContext context() {
+        final Map<Object, Object> values = new HashMap<>();
+        final Object store = Proxy.newProxyInstance(ExtensionContext.Store.class.getClassLoader(), new Class<?>[]{ExtensionContext.Store.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "put":
+                        values.put(args[0], args[1]);
+                        return null;
+                    case "get":
+                        return values.get(args[0]);
+                    case "remove":
+                        return values.remove(args[0]);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+        return (ExtensionContext) Proxy.newProxyInstance(ExtensionContext.class.getClassLoader(), new Class<?>[]{ExtensionContext.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getStore")) {
+                    return store;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are license under the terms of the
+ * MIT license.
+ */
+package co.paralleluniverse.vtime.junit;
+
+import java.util.concurrent.TimeUnit;
+import co.paralleluniverse.vtime.Clock;
+import co.paralleluniverse.vtime.VirtualClock;
+import co.paralleluniverse.vtime.clock.manual.ManualClock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author pron
+ */
+public class VirtualClockRuleTest {
+    @Rule
+    public final VirtualClockRule clock = VirtualClockRule.manual(1_000);
+
+    @Test
+    public void clockIsInstalledAndStartsAfresh() {
+        assertSame(clock.getClock(), VirtualClock.get());
+        assertEquals(0, clock.getManualClock().System_nanoTime());
+        clock.getManualClock().advance(1, TimeUnit.SECONDS);
+        assertEquals(2_000, VirtualClock.get().System_currentTimeMillis());
+    }
+
+    @Test
+    public void clockIsResetBetweenTests() {
+        clockIsInstalledAndStartsAfresh(); // whichever of the two runs first, the other starts from 0 again
+    }
+
+    @Test
+    public void clockIsUninstalledAndResetAfterAFailedTest() throws Throwable {
+        final Clock outer = VirtualClock.get();
+        final VirtualClockRule rule = VirtualClockRule.manual(0);
+        try {
+            rule.apply(new Statement() {
+                @Override
+                public void evaluate() {
+                    assertSame(rule.getClock(), VirtualClock.get());
+                    rule.getManualClock().advance(1, TimeUnit.SECONDS);
+                    throw new IllegalStateException("failed");
+                }
+            }, Description.EMPTY).evaluate();
+            fail("the test's failure was swallowed");
+        } catch (IllegalStateException e) {
+        }
+        assertSame(outer, VirtualClock.get());
+        assertEquals(0, rule.getManualClock().System_nanoTime());
+    }
+}